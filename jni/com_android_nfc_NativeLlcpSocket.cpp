@@ -18,6 +18,7 @@
 #include <errno.h>
 
 #include "com_android_nfc.h"
+#include <phFriNfc_LlcpTransport.h>
 
 namespace android {
 
@@ -242,7 +243,7 @@ static jboolean com_android_nfc_NativeLlcpSocket_doClose(JNIEnv *e, jobject o)
    return TRUE;
 }
 
-static jboolean com_android_nfc_NativeLlcpSocket_doSend(JNIEnv *e, jobject o, jbyteArray  data)
+static jboolean nfc_jni_llcp_send(JNIEnv *e, jobject o, jbyteArray data, jint offset, jint length)
 {
    NFCSTATUS ret;
    struct timespec ts;
@@ -262,8 +263,18 @@ static jboolean com_android_nfc_NativeLlcpSocket_doSend(JNIEnv *e, jobject o, jb
       goto clean_and_return;
    }
 
-   sSendBuffer.buffer = (uint8_t*)e->GetByteArrayElements(data, NULL);
-   sSendBuffer.length = (uint32_t)e->GetArrayLength(data);
+   /* Copy only the requested range; the whole array is not pinned or copied */
+   if (length > 0)
+   {
+      sSendBuffer.buffer = (uint8_t*)malloc(length);
+      if (sSendBuffer.buffer == NULL)
+      {
+         LOGE("Failed to allocate %d byte send buffer", length);
+         goto clean_and_return;
+      }
+      e->GetByteArrayRegion(data, offset, length, (jbyte*)sSendBuffer.buffer);
+   }
+   sSendBuffer.length = (uint32_t)length;
    
    TRACE("phLibNfc_Llcp_Send()");
    REENTRANCE_LOCK();
@@ -297,12 +308,29 @@ static jboolean com_android_nfc_NativeLlcpSocket_doSend(JNIEnv *e, jobject o, jb
 clean_and_return:
    if (sSendBuffer.buffer != NULL)
    {
-      e->ReleaseByteArrayElements(data, (jbyte*)sSendBuffer.buffer, JNI_ABORT);
+      free(sSendBuffer.buffer);
    }
    nfc_cb_data_deinit(&cb_data);
    return result;
 }
 
+static jboolean com_android_nfc_NativeLlcpSocket_doSend(JNIEnv *e, jobject o, jbyteArray  data)
+{
+   return nfc_jni_llcp_send(e, o, data, 0, e->GetArrayLength(data));
+}
+
+static jboolean com_android_nfc_NativeLlcpSocket_doSendRange(JNIEnv *e, jobject o,
+   jbyteArray data, jint offset, jint length)
+{
+   jint arrayLength = e->GetArrayLength(data);
+   if (offset < 0 || length < 0 || offset > arrayLength - length)
+   {
+      LOGE("doSendRange(): invalid range %d+%d for %d byte buffer", offset, length, arrayLength);
+      return JNI_FALSE;
+   }
+   return nfc_jni_llcp_send(e, o, data, offset, length);
+}
+
 static jint com_android_nfc_NativeLlcpSocket_doReceive(JNIEnv *e, jobject o, jbyteArray  buffer)
 {
    NFCSTATUS ret;
@@ -428,6 +456,24 @@ static jint com_android_nfc_NativeLlcpSocket_doGetRemoteSocketRW(JNIEnv *e, jobj
 }
 
 
+static jint com_android_nfc_NativeLlcpSocket_doGetRemoteSocketSap(JNIEnv *e, jobject o)
+{
+   phLibNfc_Handle hLlcpSocket;
+   phFriNfc_LlcpTransport_Socket_t *pLlcpSocket;
+
+   /* The libnfc socket handle is the transport socket itself; once connected
+    * it holds the SAP the remote service was resolved to. */
+   hLlcpSocket = nfc_jni_get_nfc_socket_handle(e,o);
+   pLlcpSocket = (phFriNfc_LlcpTransport_Socket_t*)hLlcpSocket;
+   if (pLlcpSocket == NULL)
+   {
+      return -1;
+   }
+   TRACE("doGetRemoteSocketSap() returned %d", pLlcpSocket->socket_dSap);
+   return pLlcpSocket->socket_dSap;
+}
+
+
 /*
  * JNI registration.
  */
@@ -445,6 +491,9 @@ static JNINativeMethod gMethods[] =
    {"doSend", "([B)Z",
       (void *)com_android_nfc_NativeLlcpSocket_doSend},
 
+   {"doSendRange", "([BII)Z",
+      (void *)com_android_nfc_NativeLlcpSocket_doSendRange},
+
    {"doReceive", "([B)I",
       (void *)com_android_nfc_NativeLlcpSocket_doReceive},
       
@@ -453,6 +502,9 @@ static JNINativeMethod gMethods[] =
            
    {"doGetRemoteSocketRw", "()I",
       (void *)com_android_nfc_NativeLlcpSocket_doGetRemoteSocketRW},
+
+   {"doGetRemoteSocketSap", "()I",
+      (void *)com_android_nfc_NativeLlcpSocket_doGetRemoteSocketSap},
 };
 
 
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.snep.SnepMessage;
+
+import android.nfc.INdefPushCallback;
+import android.nfc.NdefMessage;
+
+import java.util.ArrayList;
+
+/**
+ * Outbound NDEF messages waiting for the next beam, drained in one session
+ * after the foreground message.
+ *
+ * <p>Higher priorities go first. Within a priority, messages queued with an
+ * owner replace any earlier message from the same owner (latest wins),
+ * and messages without an owner are kept in the order they were queued.
+ * The message being sent is pinned: it is never coalesced away, so a newer
+ * message from the same owner is queued behind it instead.
+ * Each message is serialized once, when it is queued.
+ */
+final class BeamQueue {
+    static final int MAX_ITEMS = 16;
+
+    static final class Item {
+        final String owner;  // null for explicit sends
+        final NdefMessage message;
+        final SnepMessage request;
+        final INdefPushCallback callback;
+        final int priority;
+        final long seq;
+
+        Item(String owner, NdefMessage message, INdefPushCallback callback, int priority,
+                long seq) {
+            this.owner = owner;
+            this.message = message;
+            this.request = SnepMessage.getPutRequest(message);
+            this.callback = callback;
+            this.priority = priority;
+            this.seq = seq;
+        }
+    }
+
+    // Protected by 'this', ordered by priority then seq
+    final ArrayList<Item> mItems = new ArrayList<Item>();
+    Item mInFlight;  // returned by begin(), not yet sent or failed
+    long mNextSeq;
+    int mQueued;
+    int mCoalesced;
+    int mSent;
+    int mRejected;
+
+    /**
+     * Queues {@code message}.
+     * @param owner coalescing key, or null to always append
+     * @return false if the queue is full
+     */
+    synchronized boolean add(String owner, NdefMessage message, INdefPushCallback callback,
+            int priority) {
+        if (owner != null) {
+            for (int i = 0; i < mItems.size(); i++) {
+                Item queued = mItems.get(i);
+                if (queued != mInFlight && owner.equals(queued.owner)) {
+                    mItems.remove(i);
+                    mCoalesced++;
+                    break;
+                }
+            }
+        }
+        if (mItems.size() >= MAX_ITEMS) {
+            mRejected++;
+            return false;
+        }
+        Item item = new Item(owner, message, callback, priority, mNextSeq++);
+        int i = mItems.size();
+        while (i > 0 && mItems.get(i - 1).priority < priority) {
+            i--;
+        }
+        mItems.add(i, item);
+        mQueued++;
+        return true;
+    }
+
+    /**
+     * Returns the next message to send, or null if there is none, and pins
+     * it until {@link #onSent} or {@link #onFailed}.
+     */
+    synchronized Item begin() {
+        mInFlight = mItems.isEmpty() ? null : mItems.get(0);
+        return mInFlight;
+    }
+
+    /** Removes {@code item} after the peer confirmed it. */
+    synchronized void onSent(Item item) {
+        if (mInFlight == item) {
+            mInFlight = null;
+        }
+        if (mItems.remove(item)) {
+            mSent++;
+        }
+    }
+
+    /** Unpins {@code item}, which stays queued for the next tap. */
+    synchronized void onFailed(Item item) {
+        if (mInFlight == item) {
+            mInFlight = null;
+        }
+    }
+
+    /** Returns a snapshot of the queued items, in send order. */
+    synchronized Item[] toArray() {
+        return mItems.toArray(new Item[mItems.size()]);
+    }
+
+    synchronized boolean isEmpty() {
+        return mItems.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "pending=" + mItems.size() + " queued=" + mQueued + " coalesced=" + mCoalesced +
+                " sent=" + mSent + " rejected=" + mRejected;
+    }
+}
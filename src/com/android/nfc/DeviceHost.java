@@ -129,12 +129,23 @@ public interface DeviceHost {
 
         public void send(byte[] data) throws IOException;
 
+        /**
+         * Sends {@code length} bytes of {@code data} starting at {@code offset}
+         * as a single LLCP I-PDU, without copying the range on the Java heap.
+         */
+        public void send(byte[] data, int offset, int length) throws IOException;
+
         public int receive(byte[] recvBuff) throws IOException;
 
         public int getRemoteMiu();
 
         public int getRemoteRw();
 
+        /**
+         * Returns the remote SAP of a connected socket, or -1 if unknown.
+         */
+        public int getRemoteSap();
+
         public int getLocalSap();
 
         public int getLocalMiu();
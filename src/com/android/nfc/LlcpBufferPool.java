@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.util.ArrayList;
+
+/**
+ * A small pool of fragment buffers shared by the SNEP and NPP connections
+ * of the current LLCP link. SNEP messengers acquire a buffer for each
+ * message they send or receive and release it once that message is done;
+ * an NPP server connection holds one for its single message set. Back to
+ * back messages on one link thus reuse the same arrays. The pool is
+ * emptied when the link goes down.
+ */
+public final class LlcpBufferPool {
+    /** LLCP limits the MIU to 2175 bytes; larger buffers are never pooled. */
+    static final int MAX_POOLED_LENGTH = 2176;
+    static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final LlcpBufferPool sLinkPool = new LlcpBufferPool();
+
+    // Protected by 'this'
+    private final ArrayList<byte[]> mFree = new ArrayList<byte[]>(MAX_POOLED_BUFFERS);
+    private int mAllocated;
+    private int mReused;
+
+    public static LlcpBufferPool getLinkPool() {
+        return sLinkPool;
+    }
+
+    /**
+     * Returns a buffer of at least {@code minLength} bytes. The contents are
+     * undefined.
+     */
+    public byte[] acquire(int minLength) {
+        synchronized (this) {
+            for (int i = mFree.size() - 1; i >= 0; i--) {
+                if (mFree.get(i).length >= minLength) {
+                    mReused++;
+                    return mFree.remove(i);
+                }
+            }
+            mAllocated++;
+        }
+        return new byte[minLength];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length > MAX_POOLED_LENGTH) {
+            return;
+        }
+        synchronized (this) {
+            if (mFree.size() < MAX_POOLED_BUFFERS) {
+                mFree.add(buffer);
+            }
+        }
+    }
+
+    /** Drops all pooled buffers, for example when the LLCP link goes down. */
+    public synchronized void clear() {
+        mFree.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "pooled=" + mFree.size() + " allocated=" + mAllocated + " reused=" + mReused;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded worker pool that runs accepted LLCP connections for the SNEP and
+ * NPP servers. At most {@link #MAX_ACTIVE} connections are served at once.
+ *
+ * <p>Nothing is queued: a connection has already been accepted when it
+ * gets here and a handler may keep its worker for the lifetime of the
+ * link, so a queued peer could wait indefinitely. A connection that no
+ * worker can take right away is refused and the caller is expected to
+ * close the socket.
+ */
+public final class LlcpConnectionExecutor {
+    static final int MAX_ACTIVE = 4;
+    static final int KEEP_ALIVE_SECONDS = 10;
+
+    private static final LlcpConnectionExecutor sInstance = new LlcpConnectionExecutor();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mRejected = new AtomicInteger();
+
+    public static LlcpConnectionExecutor getInstance() {
+        return sInstance;
+    }
+
+    private LlcpConnectionExecutor() {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "LlcpConnection #" + mCount.getAndIncrement());
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(MAX_ACTIVE, MAX_ACTIVE, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), factory,
+                new ThreadPoolExecutor.AbortPolicy());
+        // Let idle workers exit so no threads are kept while P2P is unused
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs {@code connection} on a pool thread.
+     * @return false if every worker is busy and the connection was refused
+     */
+    public boolean execute(Runnable connection) {
+        try {
+            mExecutor.execute(connection);
+            return true;
+        } catch (RejectedExecutionException e) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    public int getRejectedCount() {
+        return mRejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + getActiveCount() + " rejected=" + getRejectedCount() +
+                " threads=" + mExecutor.getPoolSize();
+    }
+}
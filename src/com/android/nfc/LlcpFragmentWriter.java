@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.DeviceHost.LlcpSocket;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Writes a serialized message to an LLCP socket in fragments of at most
+ * the given length. Fragments are sent in place from the source buffer,
+ * so no per-fragment arrays are allocated.
+ *
+ * <p>Fragments are written back to back. The native socket completes a
+ * send as soon as the I-PDU is transmitted and holds further I-PDUs itself
+ * once the remote receive window is full, so up to the remote RW fragments
+ * are in flight without the writer waiting for acknowledgements. A socket
+ * accepts only one pending native send, so the window cannot be driven
+ * any harder from here; {@link LlcpTransferStats} records what was
+ * achieved.
+ */
+public final class LlcpFragmentWriter {
+    private static final String TAG = "LlcpFragmentWriter";
+    private static final boolean DBG = false;
+
+    private LlcpFragmentWriter() { }
+
+    /**
+     * Sends {@code buffer[offset, end)} as consecutive fragments of at most
+     * {@code fragmentLength} bytes.
+     *
+     * @return the number of bytes sent, always {@code end - offset}
+     */
+    public static int write(LlcpSocket socket, byte[] buffer, int offset, int end,
+            int fragmentLength) throws IOException {
+        return write(socket, buffer, offset, end, fragmentLength, null);
+    }
+
+    /**
+     * Same as {@link #write(LlcpSocket, byte[], int, int, int)}, counting
+     * fragments into {@code stats} if it is non-null.
+     */
+    public static int write(LlcpSocket socket, byte[] buffer, int offset, int end,
+            int fragmentLength, LlcpTransferStats stats) throws IOException {
+        if (fragmentLength <= 0) {
+            throw new IOException("Invalid fragment length " + fragmentLength);
+        }
+        int start = offset;
+        while (offset < end) {
+            int length = Math.min(end - offset, fragmentLength);
+            if (DBG) Log.d(TAG, "about to send a " + length + " byte fragment");
+            socket.send(buffer, offset, length);
+            if (stats != null) {
+                stats.addFragment(length);
+            }
+            offset += length;
+        }
+        return offset - start;
+    }
+
+    /**
+     * Sends the first fragment of {@code buffer}.
+     *
+     * @return the number of bytes sent
+     */
+    public static int writeFirst(LlcpSocket socket, byte[] buffer, int fragmentLength,
+            LlcpTransferStats stats) throws IOException {
+        return write(socket, buffer, 0, Math.min(buffer.length, fragmentLength),
+                fragmentLength, stats);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.DeviceHost.LlcpSocket;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Remembers, for the current LLCP link, the remote SAP each service name
+ * was resolved to. Later connects to the same service go straight to the
+ * SAP instead of repeating the service name lookup. Must be cleared when
+ * the link goes down, since SAPs are only stable within one link.
+ */
+class LlcpSdpCache {
+    static final String TAG = "LlcpSdpCache";
+    static final boolean DBG = false;
+
+    // Protected by 'this'
+    final HashMap<String, Integer> mSaps = new HashMap<String, Integer>();
+    int mHits;
+    int mMisses;
+
+    /**
+     * Connects {@code socket} to {@code serviceName}, by SAP if the name was
+     * already resolved on this link.
+     */
+    void connect(LlcpSocket socket, String serviceName) throws IOException {
+        Integer sap;
+        synchronized (this) {
+            sap = mSaps.get(serviceName);
+            if (sap != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+
+        if (sap != null) {
+            if (DBG) Log.d(TAG, "connecting to " + serviceName + " at cached SAP " + sap);
+            try {
+                socket.connectToSap(sap);
+                return;
+            } catch (IOException e) {
+                // Stale entry; resolve the name again on the next connect
+                synchronized (this) {
+                    mSaps.remove(serviceName);
+                }
+                throw e;
+            }
+        }
+
+        socket.connectToService(serviceName);
+        int resolved = socket.getRemoteSap();
+        if (resolved > 0) {
+            synchronized (this) {
+                mSaps.put(serviceName, resolved);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mSaps.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries=" + mSaps.size() + " hits=" + mHits + " misses=" + mMisses;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.DeviceHost.LlcpServerSocket;
+import com.android.nfc.DeviceHost.LlcpSocket;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Hosts any number of connection-oriented LLCP services.
+ *
+ * <p>Each registered (service name, SAP) pair gets a listening socket which
+ * is created, and re-created with exponential backoff after errors, by the
+ * host. Accepted connections are handed to the service's {@link Handler}.
+ * All services are started and stopped together; {@link #stop(long)} closes
+ * every listening socket and waits for the accept loops up to a deadline.
+ *
+ * <p>The native LLCP API only offers a blocking accept(), so each service
+ * still needs its own accept loop; the host keeps them under one lifecycle.
+ */
+public final class LlcpServiceHost {
+    static final String TAG = "LlcpServiceHost";
+    static final boolean DBG = false;
+
+    static final int RETRY_INITIAL_MS = 100;
+    static final int RETRY_MAX_MS = 5000;
+
+    public interface Handler {
+        /** Called when the host starts, before the service socket is created. */
+        public void onStarted();
+
+        /** Called on the accept loop for every incoming connection. */
+        public void onConnectionAccepted(LlcpSocket socket);
+
+        /** Called when the host stops. */
+        public void onStopped();
+    }
+
+    final class Service {
+        final String mServiceName;
+        final int mSap;
+        final int mMiu;
+        final int mRw;
+        final int mLinearBufferLength;
+        final Handler mHandler;
+
+        // Protected by LlcpServiceHost.this
+        AcceptThread mThread;
+        int mRecreateCount;
+
+        Service(String serviceName, int sap, int miu, int rw, int linearBufferLength,
+                Handler handler) {
+            mServiceName = serviceName;
+            mSap = sap;
+            mMiu = miu;
+            mRw = rw;
+            mLinearBufferLength = linearBufferLength;
+            mHandler = handler;
+        }
+    }
+
+    final String mName;
+
+    // Protected by 'this'
+    final ArrayList<Service> mServices = new ArrayList<Service>();
+    boolean mRunning = false;
+
+    public LlcpServiceHost(String name) {
+        mName = name;
+    }
+
+    /**
+     * Registers a service. If the host is already running the service is
+     * started immediately.
+     */
+    public void register(String serviceName, int sap, int miu, int rw, int linearBufferLength,
+            Handler handler) {
+        Service service = new Service(serviceName, sap, miu, rw, linearBufferLength, handler);
+        synchronized (this) {
+            mServices.add(service);
+            if (mRunning) {
+                startService(service);
+            }
+        }
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (mRunning) {
+                return;
+            }
+            if (DBG) Log.d(TAG, mName + ": starting " + mServices.size() + " services");
+            mRunning = true;
+            for (Service service : mServices) {
+                startService(service);
+            }
+        }
+    }
+
+    // Must be called with 'this' held
+    private void startService(Service service) {
+        service.mHandler.onStarted();
+        service.mThread = new AcceptThread(service);
+        service.mThread.start();
+    }
+
+    /**
+     * Stops all services. Closes every listening socket, then waits until the
+     * accept loops have exited or {@code timeoutMs} has passed.
+     *
+     * @return true if all accept loops exited before the deadline
+     */
+    public boolean stop(long timeoutMs) {
+        ArrayList<AcceptThread> threads = new ArrayList<AcceptThread>();
+        synchronized (this) {
+            if (!mRunning) {
+                return true;
+            }
+            if (DBG) Log.d(TAG, mName + ": stopping");
+            mRunning = false;
+            for (Service service : mServices) {
+                if (service.mThread != null) {
+                    service.mThread.shutdown();
+                    threads.add(service.mThread);
+                    service.mThread = null;
+                }
+                service.mHandler.onStopped();
+            }
+            // Wake up any accept loop that is backing off
+            notifyAll();
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        boolean stopped = true;
+        for (AcceptThread thread : threads) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining > 0) {
+                try {
+                    thread.join(remaining);
+                } catch (InterruptedException e) {
+                    // Give up waiting, the sockets are already closed
+                }
+            }
+            if (thread.isAlive()) {
+                Log.w(TAG, mName + ": " + thread.getName() + " did not stop in time");
+                stopped = false;
+            }
+        }
+        return stopped;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /** Accept loop for a single service */
+    final class AcceptThread extends Thread {
+        final Service mService;
+
+        // Protected by LlcpServiceHost.this
+        boolean mThreadRunning = true;
+        LlcpServerSocket mServerSocket;
+
+        AcceptThread(Service service) {
+            super(TAG + " " + service.mServiceName);
+            mService = service;
+        }
+
+        @Override
+        public void run() {
+            int backoff = RETRY_INITIAL_MS;
+            while (isThreadRunning()) {
+                LlcpServerSocket serverSocket = null;
+                boolean published = false;
+                try {
+                    if (DBG) Log.d(TAG, "about create LLCP service socket " +
+                            mService.mServiceName);
+                    serverSocket = NfcService.getInstance().createLlcpServerSocket(
+                            mService.mSap, mService.mServiceName, mService.mMiu,
+                            mService.mRw, mService.mLinearBufferLength);
+                    if (serverSocket == null) {
+                        throw new IOException("failed to create LLCP service socket");
+                    }
+                    synchronized (LlcpServiceHost.this) {
+                        if (!mThreadRunning) {
+                            break;
+                        }
+                        mServerSocket = serverSocket;
+                        published = true;
+                    }
+                    if (DBG) Log.d(TAG, "created LLCP service socket " + mService.mServiceName);
+
+                    while (isThreadRunning()) {
+                        if (DBG) Log.d(TAG, "about to accept");
+                        LlcpSocket communicationSocket = serverSocket.accept();
+                        if (DBG) Log.d(TAG, "accept returned " + communicationSocket);
+                        if (communicationSocket != null) {
+                            backoff = RETRY_INITIAL_MS;
+                            mService.mHandler.onConnectionAccepted(communicationSocket);
+                        }
+                    }
+                } catch (LlcpException e) {
+                    Log.e(TAG, "llcp error", e);
+                } catch (IOException e) {
+                    Log.e(TAG, "IO error", e);
+                } finally {
+                    boolean needsClose = !published;
+                    synchronized (LlcpServiceHost.this) {
+                        if (published && mServerSocket == serverSocket) {
+                            // Not yet closed by shutdown()
+                            mServerSocket = null;
+                            needsClose = true;
+                        }
+                    }
+                    if (needsClose && serverSocket != null) {
+                        try {
+                            serverSocket.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+
+                synchronized (LlcpServiceHost.this) {
+                    if (!mThreadRunning) {
+                        break;
+                    }
+                    mService.mRecreateCount++;
+                    try {
+                        LlcpServiceHost.this.wait(backoff);
+                    } catch (InterruptedException e) {
+                        // Re-check mThreadRunning
+                    }
+                }
+                backoff = Math.min(backoff * 2, RETRY_MAX_MS);
+            }
+            if (DBG) Log.d(TAG, "stopped " + mService.mServiceName);
+        }
+
+        boolean isThreadRunning() {
+            synchronized (LlcpServiceHost.this) {
+                return mThreadRunning;
+            }
+        }
+
+        // Must be called with LlcpServiceHost.this held
+        void shutdown() {
+            mThreadRunning = false;
+            if (mServerSocket != null) {
+                try {
+                    mServerSocket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                mServerSocket = null;
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println(mName + ": running=" + mRunning);
+            for (Service service : mServices) {
+                pw.println("  " + service.mServiceName + " sap=" + service.mSap +
+                        " recreated=" + service.mRecreateCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses MIU, receive window and linear buffer length for P2P sockets.
+ *
+ * <p>These are local parameters, so they bound what the peer sends us.
+ * Client sockets offer {@link #LOCAL_LINK_MIU}, the link MIU the native
+ * stack sets, or the configured maximum below it. Server sockets keep the
+ * MIU their service asks for, since they are created before any link is
+ * negotiated. The peer's link MIU only limits our outbound fragments,
+ * which the messengers already take from the socket. The
+ * receive window is adapted per kind of peer and service from earlier
+ * inbound transfers: it grows by one after a response that took several
+ * fragments and halves after a failed receive. The linear buffer holds one
+ * window's worth of fragments.
+ *
+ * <p>Limits come from {@code res/values/config.xml} and can be overridden
+ * per device. Adaptive tuning is off unless the device enables it. Server
+ * sockets are created before any peer is known, so they only get the
+ * default receive window.
+ */
+public final class LlcpSocketTuner {
+    static final String TAG = "LlcpSocketTuner";
+    static final boolean DBG = false;
+
+    /** Our link MIU, as set by the native stack (nat->miu in NativeNfcManager) */
+    static final int LOCAL_LINK_MIU = 128;
+    static final int MIN_LINEAR_BUFFER = 1024;
+    static final int MAX_HISTORY = 16;
+
+    public static final class Params {
+        public final int miu;
+        public final int rw;
+        public final int linearBufferLength;
+
+        Params(int miu, int rw, int linearBufferLength) {
+            this.miu = miu;
+            this.rw = rw;
+            this.linearBufferLength = linearBufferLength;
+        }
+
+        @Override
+        public String toString() {
+            return "miu=" + miu + " rw=" + rw + " linear=" + linearBufferLength;
+        }
+    }
+
+    private static final LlcpSocketTuner sInstance = new LlcpSocketTuner();
+
+    // Protected by 'this'
+    boolean mAdaptive = false;
+    int mMaxMiu = LOCAL_LINK_MIU;
+    int mDefaultRw = 2;
+    int mMaxRw = 4;
+    int mMaxLinearBuffer = 4096;
+    String mPeer;  // key of the current peer, null while no link is up
+    int mIncreases;
+    int mDecreases;
+    final LinkedHashMap<String, Integer> mRwHistory =
+            new LinkedHashMap<String, Integer>(MAX_HISTORY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_HISTORY;
+        }
+    };
+
+    public static LlcpSocketTuner getInstance() {
+        return sInstance;
+    }
+
+    private LlcpSocketTuner() { }
+
+    /** Loads the per-device limits. */
+    public synchronized void configure(Resources res) {
+        mAdaptive = res.getBoolean(R.bool.config_llcpAdaptiveTuning);
+        mMaxMiu = Math.min(LOCAL_LINK_MIU, res.getInteger(R.integer.config_llcpMaxMiu));
+        mMaxRw = Math.max(1, Math.min(15, res.getInteger(R.integer.config_llcpMaxRw)));
+        mDefaultRw = Math.max(1, Math.min(mMaxRw, res.getInteger(R.integer.config_llcpDefaultRw)));
+        mMaxLinearBuffer = Math.max(MIN_LINEAR_BUFFER,
+                res.getInteger(R.integer.config_llcpMaxLinearBuffer));
+    }
+
+    /** Notes the NFC-DEP general bytes of a newly activated peer, used as its key. */
+    public synchronized void onLinkActivated(byte[] generalBytes) {
+        mPeer = (generalBytes != null) ? Arrays.toString(generalBytes) : "";
+    }
+
+    public synchronized void onLinkDeactivated() {
+        mPeer = null;
+    }
+
+    /** Parameters for a client socket to {@code service} on the current peer. */
+    public synchronized Params getClientParams(String service) {
+        if (!mAdaptive) {
+            return build(LOCAL_LINK_MIU, 1);
+        }
+        Integer rw = (mPeer != null) ? mRwHistory.get(key(service)) : null;
+        return build(mMaxMiu, (rw != null) ? rw : mDefaultRw);
+    }
+
+    /**
+     * Parameters for a server socket offering {@code miu}, which is kept
+     * as is; no peer is known when it is created.
+     */
+    public synchronized Params getServerParams(int miu) {
+        return build(miu, mAdaptive ? mDefaultRw : 1);
+    }
+
+    private Params build(int miu, int rw) {
+        int linear = Math.max(MIN_LINEAR_BUFFER, Math.min(mMaxLinearBuffer, miu * rw));
+        return new Params(miu, rw, linear);
+    }
+
+    /**
+     * Records a message received from {@code service} on the current peer
+     * over a client socket. The window for this kind of peer grows after a
+     * multi-fragment receive and halves after a failed one.
+     * @param fragments fragments the message took, ignored on failure
+     */
+    public synchronized void recordReceive(String service, int fragments, boolean success) {
+        if (!mAdaptive || mPeer == null) {
+            return;
+        }
+        String key = key(service);
+        Integer current = mRwHistory.get(key);
+        int rw = (current != null) ? current : mDefaultRw;
+        if (!success) {
+            rw = Math.max(1, rw / 2);
+            mDecreases++;
+        } else if (fragments > 1 && rw < mMaxRw) {
+            rw++;
+            mIncreases++;
+        }
+        mRwHistory.put(key, rw);
+        if (DBG) Log.d(TAG, service + " rw now " + rw + " after " + fragments + " fragments");
+    }
+
+    private String key(String service) {
+        return service + "@" + mPeer;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "adaptive=" + mAdaptive + " maxMiu=" + mMaxMiu + " rw=" + mDefaultRw + "/" +
+                mMaxRw + " maxLinear=" + mMaxLinearBuffer + " history=" + mRwHistory.size() +
+                " increases=" + mIncreases + " decreases=" + mDecreases;
+    }
+}
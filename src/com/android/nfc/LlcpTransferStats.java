@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+
+/**
+ * Timing of a single outbound transfer on an LLCP socket: how many
+ * fragments were written, the remote receive window they were written
+ * against, and the goodput from the first fragment until the transfer was
+ * confirmed by the peer.
+ */
+public final class LlcpTransferStats {
+    private int mRemoteRw;
+    private int mFragmentLength;
+    private int mFragments;
+    private int mBytes;
+    private int mPayloadBytes;
+    private long mStartTime;
+    private long mElapsed = -1;
+
+    public void start(int remoteRw, int fragmentLength) {
+        mRemoteRw = remoteRw;
+        mFragmentLength = fragmentLength;
+        mFragments = 0;
+        mBytes = 0;
+        mPayloadBytes = 0;
+        mElapsed = -1;
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    void addFragment(int length) {
+        mFragments++;
+        mBytes += length;
+    }
+
+    /**
+     * Marks the transfer as confirmed by the peer.
+     * @param payloadBytes application bytes carried, excluding protocol headers
+     */
+    public void finish(int payloadBytes) {
+        mPayloadBytes = payloadBytes;
+        mElapsed = SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+    public boolean isFinished() {
+        return mElapsed >= 0;
+    }
+
+    public int getRemoteRw() {
+        return mRemoteRw;
+    }
+
+    public int getFragments() {
+        return mFragments;
+    }
+
+    public long getElapsedMs() {
+        return mElapsed;
+    }
+
+    /** Payload bytes per second, or -1 if unfinished or too short to measure. */
+    public long getGoodput() {
+        if (mElapsed <= 0) {
+            return -1;
+        }
+        return mPayloadBytes * 1000L / mElapsed;
+    }
+
+    public void copyFrom(LlcpTransferStats other) {
+        mRemoteRw = other.mRemoteRw;
+        mFragmentLength = other.mFragmentLength;
+        mFragments = other.mFragments;
+        mBytes = other.mBytes;
+        mPayloadBytes = other.mPayloadBytes;
+        mStartTime = other.mStartTime;
+        mElapsed = other.mElapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "payload=" + mPayloadBytes + " wire=" + mBytes + " fragments=" + mFragments +
+                "x" + mFragmentLength + " remoteRw=" + mRemoteRw + " ms=" + mElapsed +
+                " goodput=" + getGoodput() + "B/s";
+    }
+}
@@ -205,6 +205,7 @@ public class NfcService extends Application implements DeviceHostListener {
     int mErrorSound;
     SoundPool mSoundPool; // playback synchronized on this
     P2pLinkManager mP2pLinkManager;
+    final LlcpSdpCache mSdpCache = new LlcpSdpCache();
     TagService mNfcTagService;
     NfcAdapterService mNfcAdapter;
     NfcAdapterExtrasService mExtrasService;
@@ -314,6 +315,8 @@ public class NfcService extends Application implements DeviceHostListener {
         mContext = this;
         mDeviceHost = new NativeNfcManager(this, this);
 
+        PayloadSpool.configure(getCacheDir());
+        LlcpSocketTuner.getInstance().configure(getResources());
         mP2pLinkManager = new P2pLinkManager(mContext);
         mNfcDispatcher = new NfcDispatcher(this, mP2pLinkManager);
 
@@ -350,7 +353,8 @@ public class NfcService extends Application implements DeviceHostListener {
 
         registerReceiver(mReceiver, filter);
 
-        new EnableDisableTask().execute(TASK_BOOT);  // do blocking boot tasks
+        new EnableDisableTask().executeOnExecutor(NfcTaskExecutor.getControlExecutor(),
+                TASK_BOOT);  // do blocking boot tasks
     }
 
     void initSoundPool() {
@@ -479,8 +483,7 @@ public class NfcService extends Application implements DeviceHostListener {
                     break;
             }
 
-            // Restore default AsyncTask priority
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            NfcTaskExecutor.restoreThreadPriority();
             return null;
         }
 
@@ -653,7 +656,8 @@ public class NfcService extends Application implements DeviceHostListener {
                 Log.i(TAG, "denying enable() request (airplane mode)");
                 return false;
             }
-            new EnableDisableTask().execute(TASK_ENABLE);
+            new EnableDisableTask().executeOnExecutor(NfcTaskExecutor.getControlExecutor(),
+                    TASK_ENABLE);
 
             return true;
         }
@@ -663,7 +667,8 @@ public class NfcService extends Application implements DeviceHostListener {
             NfcService.enforceAdminPerm(mContext);
 
             saveNfcOnSetting(false);
-            new EnableDisableTask().execute(TASK_DISABLE);
+            new EnableDisableTask().executeOnExecutor(NfcTaskExecutor.getControlExecutor(),
+                    TASK_DISABLE);
 
             return true;
         }
@@ -747,6 +752,17 @@ public class NfcService extends Application implements DeviceHostListener {
         @Override
         public void setForegroundNdefPush(NdefMessage msg, INdefPushCallback callback) {
             mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+            if (msg != null && callback != null) {
+                // A message and a callback together queue the message behind
+                // the foreground one; the callback hears when it is delivered.
+                // Each app keeps at most one message queued.
+                String owner = getPackageManager().getNameForUid(Binder.getCallingUid());
+                if (!mP2pLinkManager.queueNdefToSend(owner, msg, callback,
+                        P2pLinkManager.PRIORITY_NORMAL)) {
+                    Log.w(TAG, "Outbound beam queue full, dropping message from " + owner);
+                }
+                return;
+            }
             mP2pLinkManager.setNdefToSend(msg, callback);
         }
 
@@ -1486,6 +1502,16 @@ public class NfcService extends Application implements DeviceHostListener {
         return mDeviceHost.createLlcpSocket(sap, miu, rw, linearBufferLength);
     }
 
+    /**
+     * For use by code in this process. Connects {@code socket} to a remote
+     * service, skipping the name lookup if it was already resolved on the
+     * current LLCP link.
+     */
+    public void connectLlcpSocketToService(LlcpSocket socket, String serviceName)
+            throws IOException {
+        mSdpCache.connect(socket, serviceName);
+    }
+
     /** For use by code in this process */
     public LlcpServerSocket createLlcpServerSocket(int sap, String sn, int miu, int rw,
             int linearBufferLength) throws IOException, LlcpException {
@@ -1622,6 +1648,9 @@ public class NfcService extends Application implements DeviceHostListener {
                         device.disconnect();  // restarts polling loop
                     }
 
+                    // Remote SAPs are only valid for the link they were resolved on
+                    mSdpCache.clear();
+
                     mP2pLinkManager.onLlcpDeactivated();
                     break;
 
@@ -1689,7 +1718,7 @@ public class NfcService extends Application implements DeviceHostListener {
                                 // Register P2P device
                                 mObjectMap.put(device.getHandle(), device);
                             }
-                            mP2pLinkManager.onLlcpActivated();
+                            mP2pLinkManager.onLlcpActivated(device.getGeneralBytes());
                             return true;
                         } else {
                             /* should not happen */
@@ -1718,7 +1747,7 @@ public class NfcService extends Application implements DeviceHostListener {
                             // Register P2P device
                             mObjectMap.put(device.getHandle(), device);
                         }
-                        mP2pLinkManager.onLlcpActivated();
+                        mP2pLinkManager.onLlcpActivated(device.getGeneralBytes());
                         return true;
                     }
                 } else {
@@ -1747,6 +1776,7 @@ public class NfcService extends Application implements DeviceHostListener {
     class ApplyRoutingTask extends AsyncTask<Integer, Void, Void> {
         @Override
         protected Void doInBackground(Integer... params) {
+            NfcTaskExecutor.restoreThreadPriority();
             synchronized (NfcService.this) {
                 if (params == null || params.length != 1) {
                     // force apply current routing
@@ -1775,7 +1805,7 @@ public class NfcService extends Application implements DeviceHostListener {
             if (action.equals(
                     NativeNfcManager.INTERNAL_TARGET_DESELECTED_ACTION)) {
                 // Perform applyRouting() in AsyncTask to serialize blocking calls
-                new ApplyRoutingTask().execute();
+                new ApplyRoutingTask().executeOnExecutor(NfcTaskExecutor.getControlExecutor());
             } else if (action.equals(Intent.ACTION_SCREEN_ON)
                     || action.equals(Intent.ACTION_SCREEN_OFF)
                     || action.equals(Intent.ACTION_USER_PRESENT)) {
@@ -1789,10 +1819,11 @@ public class NfcService extends Application implements DeviceHostListener {
                 } else if (action.equals(Intent.ACTION_USER_PRESENT)) {
                     screenState = SCREEN_STATE_ON_UNLOCKED;
                 }
-                new ApplyRoutingTask().execute(Integer.valueOf(screenState));
+                new ApplyRoutingTask().executeOnExecutor(NfcTaskExecutor.getControlExecutor(),
+                        Integer.valueOf(screenState));
             } else if (action.equals(ACTION_MASTER_CLEAR_NOTIFICATION)) {
                 EnableDisableTask eeWipeTask = new EnableDisableTask();
-                eeWipeTask.execute(TASK_EE_WIPE);
+                eeWipeTask.executeOnExecutor(NfcTaskExecutor.getControlExecutor(), TASK_EE_WIPE);
                 try {
                     eeWipeTask.get();  // blocks until EE wipe is complete
                 } catch (ExecutionException e) {
@@ -1812,7 +1843,8 @@ public class NfcService extends Application implements DeviceHostListener {
 
                     synchronized (NfcService.this) {
                         if (mSePackages.contains(packageName)) {
-                            new EnableDisableTask().execute(TASK_EE_WIPE);
+                            new EnableDisableTask().executeOnExecutor(
+                                    NfcTaskExecutor.getControlExecutor(), TASK_EE_WIPE);
                             mSePackages.remove(packageName);
                         }
                     }
@@ -1828,9 +1860,11 @@ public class NfcService extends Application implements DeviceHostListener {
                     return;
                 }
                 if (isAirplaneModeOn) {
-                    new EnableDisableTask().execute(TASK_DISABLE);
+                    new EnableDisableTask().executeOnExecutor(NfcTaskExecutor.getControlExecutor(),
+                            TASK_DISABLE);
                 } else if (!isAirplaneModeOn && mPrefs.getBoolean(PREF_NFC_ON, NFC_ON_DEFAULT)) {
-                    new EnableDisableTask().execute(TASK_ENABLE);
+                    new EnableDisableTask().executeOnExecutor(NfcTaskExecutor.getControlExecutor(),
+                            TASK_ENABLE);
                 }
             }
         }
@@ -1891,6 +1925,12 @@ public class NfcService extends Application implements DeviceHostListener {
             pw.println("mIsAirplaneToggleable=" + mIsAirplaneToggleable);
             pw.println("mOpenEe=" + mOpenEe);
             mP2pLinkManager.dump(fd, pw, args);
+            pw.println("llcp sdp cache: " + mSdpCache);
+            pw.println("payload spool: " + PayloadSpool.dumpStats());
+            pw.println("llcp socket tuning: " + LlcpSocketTuner.getInstance());
+            pw.println(NfcTaskExecutor.getP2pExecutor());
+            pw.println(NfcTaskExecutor.getControlExecutor());
+            pw.println(NfcTaskExecutor.getPrepareExecutor());
             mNfceeAccessControl.dump(fd, pw, args);
             pw.println(mDeviceHost.dump());
 
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serial executor for one kind of NFC service work, run at its own thread
+ * priority, so that slow work of one kind cannot hold up another. Use
+ * with {@link android.os.AsyncTask#executeOnExecutor}.
+ *
+ * <p>{@link #getP2pExecutor()} runs P2P connects and sends, including
+ * their SNEP and NPP I/O, at foreground priority. {@link #getControlExecutor()}
+ * runs enable, disable, EE wipe and routing changes at default priority.
+ * These must stay on one thread: an EE wipe holds the secure element open
+ * without the NfcService lock, and routing changes must not run meanwhile.
+ * {@link #getPrepareExecutor()} runs the binder calls into apps that build
+ * the message to beam, at foreground priority, so an app that never
+ * answers holds up only later preparations and not sends or NFC control.
+ * Tasks on one executor run in the order they were queued.
+ *
+ * <p>AsyncTask drops its thread to background priority before calling
+ * doInBackground(), so tasks call {@link #restoreThreadPriority()} first.
+ */
+public final class NfcTaskExecutor implements Executor {
+    static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final NfcTaskExecutor sP2p =
+            new NfcTaskExecutor("NfcP2p", Process.THREAD_PRIORITY_FOREGROUND);
+    private static final NfcTaskExecutor sControl =
+            new NfcTaskExecutor("NfcControl", Process.THREAD_PRIORITY_DEFAULT);
+    private static final NfcTaskExecutor sPrepare =
+            new NfcTaskExecutor("NfcPrepare", Process.THREAD_PRIORITY_FOREGROUND);
+
+    // Priority of the executor that owns the current thread
+    private static final ThreadLocal<Integer> sThreadPriority = new ThreadLocal<Integer>();
+
+    private final String mName;
+    private final int mPriority;
+    private final ThreadPoolExecutor mExecutor;
+
+    // Protected by 'this'
+    private int mExecuted;
+    private int mMaxDepth;
+    private long mTotalWaitMs;
+    private long mMaxWaitMs;
+
+    public static NfcTaskExecutor getP2pExecutor() {
+        return sP2p;
+    }
+
+    public static NfcTaskExecutor getControlExecutor() {
+        return sControl;
+    }
+
+    public static NfcTaskExecutor getPrepareExecutor() {
+        return sPrepare;
+    }
+
+    /**
+     * Sets the calling thread back to the priority of the executor it
+     * belongs to. Does nothing on other threads.
+     */
+    public static void restoreThreadPriority() {
+        Integer priority = sThreadPriority.get();
+        if (priority != null) {
+            Process.setThreadPriority(priority.intValue());
+        }
+    }
+
+    private NfcTaskExecutor(String name, final int priority) {
+        mName = name;
+        mPriority = priority;
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        sThreadPriority.set(Integer.valueOf(priority));
+                        Process.setThreadPriority(priority);
+                        r.run();
+                    }
+                }, mName + " #" + mCount.getAndIncrement());
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        // Let the idle worker exit so no threads are kept while NFC is quiet
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final long queuedTime = SystemClock.elapsedRealtime();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onStarted(SystemClock.elapsedRealtime() - queuedTime);
+                command.run();
+            }
+        });
+        int depth = mExecutor.getQueue().size();
+        synchronized (this) {
+            mMaxDepth = Math.max(mMaxDepth, depth);
+        }
+    }
+
+    private synchronized void onStarted(long waitMs) {
+        mExecuted++;
+        mTotalWaitMs += waitMs;
+        mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+    }
+
+    /** Number of tasks waiting to start. */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long averageWaitMs = (mExecuted > 0) ? mTotalWaitMs / mExecuted : 0;
+        return mName + ": priority=" + mPriority + " active=" + mExecutor.getActiveCount() +
+                " queued=" + getQueuedCount() + " maxQueued=" + mMaxDepth +
+                " executed=" + mExecuted + " avgWaitMs=" + averageWaitMs +
+                " maxWaitMs=" + mMaxWaitMs;
+    }
+}
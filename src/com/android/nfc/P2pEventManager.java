@@ -95,6 +95,14 @@ public class P2pEventManager implements P2pEventListener, SendUi.Callback {
         mNdefReceived = true;
     }
 
+    @Override
+    public void onP2pDuplexReceiveComplete() {
+        // Keep the send animation running, the send completes separately.
+        // mNdefReceived stays false, so the UI is still finished if the
+        // send then fails or the link drops.
+        mVibrator.vibrate(VIBRATION_PATTERN, -1);
+    }
+
     @Override
     public void onP2pOutOfRange() {
         if (mSending) {
@@ -18,13 +18,21 @@ package com.android.nfc;
 
 import com.android.nfc.ndefpush.NdefPushClient;
 import com.android.nfc.ndefpush.NdefPushServer;
+import com.android.nfc.snep.SnepChunkReceiver;
+import com.android.nfc.snep.SnepChunkSender;
 import com.android.nfc.snep.SnepClient;
+import com.android.nfc.snep.SnepCompression;
+import com.android.nfc.snep.SnepContentStore;
 import com.android.nfc.snep.SnepMessage;
+import com.android.nfc.snep.SnepReceiveBudget;
 import com.android.nfc.snep.SnepServer;
 
 import android.app.ActivityManager;
 import android.app.ActivityManager.RunningTaskInfo;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -45,9 +53,16 @@ import android.util.Log;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charsets;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
 
 /**
  * Interface to listen for P2P events.
@@ -78,6 +93,13 @@ interface P2pEventListener {
      */
     public void onP2pReceiveComplete();
 
+    /**
+     * Called to indicate a receive was successful while a send is still in
+     * progress or waiting for confirmation. The send carries on, and
+     * onP2pSendComplete() follows if it succeeds.
+     */
+    public void onP2pDuplexReceiveComplete();
+
     /**
      * Indicates the P2P device went out of range.
      */
@@ -102,15 +124,49 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
 
     static final int LINK_DEBOUNCE_MS = 750;
 
+    // Deadline for a SNEP PUT: a fixed allowance plus the payload at the
+    // slowest goodput still worth waiting for
+    static final int SNEP_PUT_TIMEOUT_MS = 2000;
+    static final int SNEP_PUT_MIN_GOODPUT = 4096;  // bytes per second
+
+    // Deadline for each chunk PUT or status GET of a chunked beam
+    static final long SNEP_CHUNK_TIMEOUT_MS = SNEP_PUT_TIMEOUT_MS +
+            SnepChunkSender.DEFAULT_CHUNK_SIZE * 1000L / SNEP_PUT_MIN_GOODPUT;
+
+    // A single MIME record at least this large is beamed in resumable chunks
+    // to peers that support it
+    static final int CHUNKED_BEAM_THRESHOLD = 4 * SnepChunkSender.DEFAULT_CHUNK_SIZE;
+
+    // How long link activation waits for an app to create its message
+    // before falling back to the static message
+    static final int PREPARE_TIMEOUT_MS = 500;
+
+    static final int MAX_DEFAULT_NDEF_ENTRIES = 32;
+
+    // Upper bound on how long disabling P2P waits for the accept loops
+    static final int SERVICE_STOP_TIMEOUT_MS = 500;
+
     static final int MSG_DEBOUNCE_TIMEOUT = 1;
     static final int MSG_RECEIVE_COMPLETE = 2;
     static final int MSG_SEND_COMPLETE = 3;
+    static final int MSG_QUEUED_SEND_COMPLETE = 4;
+    static final int MSG_PREPARE_TIMEOUT = 5;
+    static final int MSG_BACKGROUND_RECEIVE = 6;
+
+    // priorities for queueNdefToSend()
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
 
     // values for mLinkState
     static final int LINK_STATE_DOWN = 1;
     static final int LINK_STATE_UP = 2;
     static final int LINK_STATE_DEBOUNCE =3;
 
+    // results of sendStream()
+    static final int STREAM_SENT = 1;
+    static final int STREAM_UNSUPPORTED = 2;
+    static final int STREAM_FAILED = 3;
+
     // values for mSendState
     static final int SEND_STATE_NOTHING_TO_SEND = 1;
     static final int SEND_STATE_NEED_CONFIRMATION = 2;
@@ -123,6 +179,14 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
 
     final NdefPushServer mNdefPushServer;
     final SnepServer mDefaultSnepServer;
+    final SnepReceiveBudget mReceiveBudget;  // also holds reassembled chunked beams
+    final LlcpServiceHost mServiceHost;
+    final PeerCapabilityCache mCapabilityCache;
+    final SnepContentStore mContentStore;
+    final SnepChunkReceiver mChunkReceiver;
+    final BeamQueue mOutbound;
+    final boolean mFullDuplex;  // keep a local beam going when one arrives
+    final boolean mSnepCompression;  // try compressed SNEP on peers not known to lack it
     final ActivityManager mActivityManager;
     final PackageManager mPackageManager;
     final Context mContext;
@@ -135,19 +199,65 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
     boolean mIsSendEnabled;
     boolean mIsReceiveEnabled;
     NdefMessage mMessageToSend;  // valid during SEND_STATE_NEED_CONFIRMATION or SEND_STATE_SENDING
+    SnepMessage mRequestToSend;  // mMessageToSend serialized ahead of time, may be null
+    boolean mMessageSent;  // mMessageToSend was delivered, only the queue is left
+    SnepChunkSender mStreamToSend;  // mMessageToSend beamed in chunks, null if not chunked
+    NdefRecord mPublishedKey;  // confirmed message is in mContentStore under this, may be null
     NdefMessage mStaticNdef;
+    SnepMessage mStaticRequest;  // mStaticNdef serialized when it was set
     INdefPushCallback mCallbackNdef;
+    PrepareTask mPrepareTask;
+    int mPrepareGeneration;  // results of older preparations are dropped
+    int mPrepareTimeouts;
+    byte[] mPeerGeneralBytes;  // LLCP parameters of the peer, valid during LINK_STATE_UP
     SendTask mSendTask;
+    Future<SnepMessage> mSnepPut;  // PUT or chunk request in progress for mSendTask
+    ConnectTask mConnectTask;
+    SnepClient mSnepClient;  // connected SNEP session, valid during LINK_STATE_UP
+    NdefPushClient mNppClient;  // pre-connected NPP fallback, valid during LINK_STATE_UP
+    int mSnepSessionsOpened;
+    int mSnepSessionsReused;
+    int mDuplexReceives;
+    int mBackgroundReceives;
+    LlcpTransferStats mLastSnepPut;
     SharedPreferences mPrefs;
     boolean mFirstBeam;
 
+    // Default NDEF per foreground package, null if the package gets none.
+    // Protected by itself.
+    final LinkedHashMap<String, NdefMessage> mDefaultNdefs =
+            new LinkedHashMap<String, NdefMessage>(MAX_DEFAULT_NDEF_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NdefMessage> eldest) {
+            return size() > MAX_DEFAULT_NDEF_ENTRIES;
+        }
+    };
+    int mDefaultNdefHits;
+    int mDefaultNdefMisses;
+
     public P2pLinkManager(Context context) {
+        this(context, null);
+    }
+
+    /** @param eventListener used instead of a {@link P2pEventManager} if non-null */
+    P2pLinkManager(Context context, P2pEventListener eventListener) {
         mNdefPushServer = new NdefPushServer(NDEFPUSH_SAP, mNppCallback);
         mDefaultSnepServer = new SnepServer(mDefaultSnepCallback);
+        mServiceHost = new LlcpServiceHost(TAG);
+        mDefaultSnepServer.registerWith(mServiceHost);
+        mReceiveBudget = mDefaultSnepServer.getReceiveBudget();
+        mNdefPushServer.registerWith(mServiceHost);
+        mCapabilityCache = new PeerCapabilityCache();
+        mContentStore = new SnepContentStore();
+        mChunkReceiver = new SnepChunkReceiver(mChunkCallback);
+        mOutbound = new BeamQueue();
+        mFullDuplex = context.getResources().getBoolean(R.bool.config_p2pFullDuplex);
+        mSnepCompression = context.getResources().getBoolean(R.bool.config_snepCompression);
         mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
         mPackageManager = context.getPackageManager();
         mContext = context;
-        mEventListener = new P2pEventManager(context, this);
+        mEventListener = (eventListener != null) ? eventListener :
+                new P2pEventManager(context, this);
         mHandler = new Handler(this);
         mLinkState = LINK_STATE_DOWN;
         mSendState = SEND_STATE_NOTHING_TO_SEND;
@@ -155,6 +265,18 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
         mIsReceiveEnabled = false;
         mPrefs = context.getSharedPreferences(NfcService.PREF, Context.MODE_PRIVATE);
         mFirstBeam = mPrefs.getBoolean(NfcService.PREF_FIRST_BEAM, true);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, sdFilter);
      }
 
     /**
@@ -164,11 +286,9 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
     public void enableDisable(boolean sendEnable, boolean receiveEnable) {
         synchronized (this) {
             if (!mIsReceiveEnabled && receiveEnable) {
-                mDefaultSnepServer.start();
-                mNdefPushServer.start();
+                mServiceHost.start();
             } else if (mIsReceiveEnabled && !receiveEnable) {
-                mDefaultSnepServer.stop();
-                mNdefPushServer.stop();
+                mServiceHost.stop(SERVICE_STOP_TIMEOUT_MS);
             }
             mIsSendEnabled = sendEnable;
             mIsReceiveEnabled = receiveEnable;
@@ -183,19 +303,54 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
      * active as soon as P2P send is enabled.
      */
     public void setNdefToSend(NdefMessage staticNdef, INdefPushCallback callbackNdef) {
+        // Serialize now rather than on the first tap
+        SnepMessage staticRequest =
+                (staticNdef != null) ? SnepMessage.getPutRequest(staticNdef) : null;
         synchronized (this) {
             mStaticNdef = staticNdef;
+            mStaticRequest = staticRequest;
             mCallbackNdef = callbackNdef;
         }
     }
 
+    /**
+     * Queue a message to beam on the next tap, after the message set with
+     * {@link #setNdefToSend}, highest priority first. SNEP peers get all
+     * of them in one session, NPP peers one connection per message.
+     * Apps reach this through setForegroundNdefPush() with both a message
+     * and a callback.
+     * May be called from any thread.
+     * @param owner a message replaces any queued message with the same
+     *     owner; messages without an owner are sent in the order queued
+     * @param callback notified when this message has been delivered, may be null
+     * @return false if too many messages are queued
+     */
+    public boolean queueNdefToSend(String owner, NdefMessage msg, INdefPushCallback callback,
+            int priority) {
+        return mOutbound.add(owner, msg, callback, priority);
+    }
+
+    /**
+     * Content served to SNEP GET requests from peers. A confirmed beam is
+     * published here while the link is up.
+     * May be called from any thread.
+     */
+    public SnepContentStore getContentStore() {
+        return mContentStore;
+    }
+
     /**
      * Must be called on UI Thread.
+     * @param generalBytes the peer's NFC-DEP general bytes, may be null
      */
-    public void onLlcpActivated() {
+    public void onLlcpActivated(byte[] generalBytes) {
         Log.i(TAG, "LLCP activated");
 
         synchronized (P2pLinkManager.this) {
+            if (mLinkState != LINK_STATE_UP) {
+                mPeerGeneralBytes = generalBytes;
+                LlcpSocketTuner.getInstance().onLinkActivated(generalBytes);
+            }
             switch (mLinkState) {
                 case LINK_STATE_DOWN:
                     mLinkState = LINK_STATE_UP;
@@ -203,12 +358,8 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
                     if (DBG) Log.d(TAG, "onP2pInRange()");
                     mEventListener.onP2pInRange();
 
+                    // Completes in onMessagePrepared()
                     prepareMessageToSend();
-                    if (mMessageToSend != null) {
-                        mSendState = SEND_STATE_NEED_CONFIRMATION;
-                        if (DBG) Log.d(TAG, "onP2pSendConfirmationRequested()");
-                        mEventListener.onP2pSendConfirmationRequested();
-                    }
                     break;
                 case LINK_STATE_UP:
                     if (DBG) Log.d(TAG, "Duplicate onLlcpActivated()");
@@ -220,58 +371,177 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
                     if (mSendState == SEND_STATE_SENDING) {
                         Log.i(TAG, "Retry send...");
                         sendNdefMessage();
+                    } else if (mSendState == SEND_STATE_NEED_CONFIRMATION) {
+                        connectAhead();
                     }
                     break;
             }
         }
     }
 
+    /**
+     * Works out what to send on this tap. Anything that needs a binder call
+     * into an app or the framework runs in {@link PrepareTask}, bounded by
+     * {@link #PREPARE_TIMEOUT_MS}, so the UI thread never waits on it.
+     * Must be called on UI Thread.
+     */
     void prepareMessageToSend() {
         synchronized (P2pLinkManager.this) {
+            cancelPrepare();
+            unpublishMessageToSend();
+            mStreamToSend = null;
+            mMessageSent = false;
+            mMessageToSend = null;
+            mRequestToSend = null;
             if (!mIsSendEnabled) {
-                mMessageToSend = null;
                 return;
             }
 
-            NdefMessage messageToSend = mStaticNdef;
-            INdefPushCallback callback = mCallbackNdef;
+            if (mCallbackNdef == null && mStaticNdef != null) {
+                onMessagePrepared(mPrepareGeneration, mStaticNdef);
+                return;
+            }
+
+            mPrepareTask = new PrepareTask(mPrepareGeneration, mStaticNdef, mCallbackNdef,
+                    !mOutbound.isEmpty());
+            mPrepareTask.executeOnExecutor(NfcTaskExecutor.getPrepareExecutor());
+            mHandler.sendMessageDelayed(
+                    mHandler.obtainMessage(MSG_PREPARE_TIMEOUT, mPrepareGeneration, 0),
+                    PREPARE_TIMEOUT_MS);
+        }
+    }
+
+    /** Drops the result of any preparation still running. */
+    void cancelPrepare() {
+        synchronized (P2pLinkManager.this) {
+            mPrepareGeneration++;
+            mPrepareTask = null;
+            mHandler.removeMessages(MSG_PREPARE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Must be called on UI Thread.
+     */
+    void onMessagePrepared(int generation, NdefMessage messageToSend) {
+        synchronized (P2pLinkManager.this) {
+            if (generation != mPrepareGeneration || mLinkState == LINK_STATE_DOWN ||
+                    mSendState != SEND_STATE_NOTHING_TO_SEND) {
+                return;
+            }
+            cancelPrepare();
+            mMessageToSend = messageToSend;
+            mRequestToSend = (messageToSend != null && messageToSend == mStaticNdef) ?
+                    mStaticRequest : null;
+            if (mMessageToSend != null || !mOutbound.isEmpty()) {
+                mSendState = SEND_STATE_NEED_CONFIRMATION;
+                if (DBG) Log.d(TAG, "onP2pSendConfirmationRequested()");
+                mEventListener.onP2pSendConfirmationRequested();
+                if (mLinkState == LINK_STATE_UP) {
+                    connectAhead();
+                }
+            }
+        }
+    }
+
+    final class PrepareTask extends AsyncTask<Void, Void, NdefMessage> {
+        final int mGeneration;
+        final NdefMessage mStatic;
+        final INdefPushCallback mCallback;
+        final boolean mQueued;
 
-            if (callback != null) {
+        PrepareTask(int generation, NdefMessage staticNdef, INdefPushCallback callback,
+                boolean queued) {
+            mGeneration = generation;
+            mStatic = staticNdef;
+            mCallback = callback;
+            mQueued = queued;
+        }
+
+        @Override
+        public NdefMessage doInBackground(Void... args) {
+            NfcTaskExecutor.restoreThreadPriority();
+            NdefMessage messageToSend = mStatic;
+            if (mCallback != null) {
                 try {
-                    messageToSend = callback.createMessage();
+                    messageToSend = mCallback.createMessage();
                 } catch (RemoteException e) {
                     // Ignore
                 }
             }
+            return getFallbackNdef(messageToSend, mQueued);
+        }
 
-            if (messageToSend == null) {
-                messageToSend = createDefaultNdef();
-            }
-            mMessageToSend = messageToSend;
+        @Override
+        protected void onPostExecute(NdefMessage messageToSend) {
+            onMessagePrepared(mGeneration, messageToSend);
+        }
+    }
+
+    /**
+     * Returns {@code messageToSend} if non-null, else the default NDEF unless
+     * queued messages will be sent. Also what a prepare that timed out
+     * falls back to, given the static message.
+     */
+    NdefMessage getFallbackNdef(NdefMessage messageToSend, boolean queued) {
+        if (messageToSend != null || queued) {
+            return messageToSend;
         }
+        return getDefaultNdef();
     }
 
-    NdefMessage createDefaultNdef() {
+    /** Returns the default NDEF for the foreground package, from cache if possible. */
+    NdefMessage getDefaultNdef() {
         List<RunningTaskInfo> tasks = mActivityManager.getRunningTasks(1);
-        if (tasks.size() > 0) {
-            String pkg = tasks.get(0).baseActivity.getPackageName();
-            try {
-                ApplicationInfo appInfo = mPackageManager.getApplicationInfo(pkg, 0);
-                if (0 == (appInfo.flags & ApplicationInfo.FLAG_SYSTEM)) {
-                    NdefRecord appUri = NdefRecord.createUri(
-                            Uri.parse("http://market.android.com/search?q=pname:" + pkg));
-                    NdefRecord appRecord = NdefRecord.createApplicationRecord(pkg);
-                    return new NdefMessage(new NdefRecord[] { appUri, appRecord });
-                }
-            } catch (NameNotFoundException e) {
-                Log.e(TAG, "Bad package returned from ActivityManager: " + pkg);
-            }
-        } else {
+        if (tasks.size() == 0) {
             Log.d(TAG, "no foreground activity");
+            return null;
+        }
+        String pkg = tasks.get(0).baseActivity.getPackageName();
+        synchronized (mDefaultNdefs) {
+            if (mDefaultNdefs.containsKey(pkg)) {
+                mDefaultNdefHits++;
+                return mDefaultNdefs.get(pkg);
+            }
+            mDefaultNdefMisses++;
+        }
+        NdefMessage defaultNdef = createDefaultNdef(pkg);
+        synchronized (mDefaultNdefs) {
+            mDefaultNdefs.put(pkg, defaultNdef);
+        }
+        return defaultNdef;
+    }
+
+    NdefMessage createDefaultNdef(String pkg) {
+        try {
+            ApplicationInfo appInfo = mPackageManager.getApplicationInfo(pkg, 0);
+            if (0 == (appInfo.flags & ApplicationInfo.FLAG_SYSTEM)) {
+                NdefRecord appUri = NdefRecord.createUri(
+                        Uri.parse("http://market.android.com/search?q=pname:" + pkg));
+                NdefRecord appRecord = NdefRecord.createApplicationRecord(pkg);
+                return new NdefMessage(new NdefRecord[] { appUri, appRecord });
+            }
+        } catch (NameNotFoundException e) {
+            Log.e(TAG, "Bad package returned from ActivityManager: " + pkg);
         }
         return null;
     }
 
+    /** Drops cached default NDEF messages of packages that changed */
+    final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            synchronized (mDefaultNdefs) {
+                if (data != null) {
+                    mDefaultNdefs.remove(data.getSchemeSpecificPart());
+                } else {
+                    mDefaultNdefs.clear();
+                }
+            }
+        }
+    };
+
     /**
      * Must be called on UI Thread.
      */
@@ -288,28 +558,29 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
                     mLinkState = LINK_STATE_DEBOUNCE;
                     mHandler.sendEmptyMessageDelayed(MSG_DEBOUNCE_TIMEOUT, LINK_DEBOUNCE_MS);
                     cancelSendNdefMessage();
+                    cancelConnectAhead();
+                    closeSnepSession();
+                    closeNppClient();
                     break;
             }
          }
      }
 
-    void onSendComplete(NdefMessage msg, long elapsedRealtime) {
+    void onSendComplete(NdefMessage msg, int size, long elapsedRealtime) {
         if (mFirstBeam) {
             EventLogTags.writeNfcFirstShare();
             mPrefs.edit().putBoolean(NfcService.PREF_FIRST_BEAM, false).apply();
             mFirstBeam = false;
         }
-        EventLogTags.writeNfcShare(getMessageSize(msg), getMessageTnf(msg), getMessageType(msg),
+        EventLogTags.writeNfcShare(size, getMessageTnf(msg), getMessageType(msg),
                 getMessageAarPresent(msg), (int) elapsedRealtime);
-        // Make callbacks on UI thread
-        mHandler.sendEmptyMessage(MSG_SEND_COMPLETE);
     }
 
     void sendNdefMessage() {
         synchronized (this) {
             cancelSendNdefMessage();
             mSendTask = new SendTask();
-            mSendTask.execute();
+            mSendTask.executeOnExecutor(NfcTaskExecutor.getP2pExecutor());
         }
     }
 
@@ -318,93 +589,540 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
             if (mSendTask != null) {
                 mSendTask.cancel(true);
             }
+            if (mSnepPut != null) {
+                // Closes the socket, so the blocked send returns right away
+                mSnepPut.cancel(true);
+                mSnepPut = null;
+            }
         }
     }
 
     final class SendTask extends AsyncTask<Void, Void, Void> {
         @Override
         public Void doInBackground(Void... args) {
+            NfcTaskExecutor.restoreThreadPriority();
             NdefMessage m;
-            boolean result;
+            SnepMessage prepared;
+            SnepChunkSender stream;
 
             synchronized (P2pLinkManager.this) {
                 if (mLinkState != LINK_STATE_UP || mSendState != SEND_STATE_SENDING) {
                     return null;
                 }
-                m = mMessageToSend;
+                // After a link bounce only the rest of the queue is left to send
+                m = mMessageSent ? null : mMessageToSend;
+                prepared = mRequestToSend;
+                if (m != null && mStreamToSend == null) {
+                    // Kept across a link bounce, so the retry resumes the transfer
+                    mStreamToSend = createStream(m);
+                }
+                stream = mMessageSent ? null : mStreamToSend;
             }
 
             long time = SystemClock.elapsedRealtime();
             try {
-                if (DBG) Log.d(TAG, "Sending ndef via SNEP");
-                result = doSnepProtocol(m);
+                connectTransport();
             } catch (IOException e) {
-                Log.i(TAG, "Failed to connect over SNEP, trying NPP");
+                Log.i(TAG, "Failed to connect over SNEP or NPP");
+                return null;
+            }
 
-                if (isCancelled()) {
+            if (isCancelled()) {
+                return null;
+            }
+
+            NdefPushClient nppClient = takeNppClient();
+            if (nppClient != null) {
+                if (DBG) Log.d(TAG, "Sending ndef via NPP");
+                if (!pushNpp(nppClient, m, time)) {
+                    return null;
+                }
+            } else {
+                if (stream != null) {
+                    int result = sendStream(stream);
+                    if (result == STREAM_FAILED) {
+                        return null;
+                    } else if (result == STREAM_SENT) {
+                        onMessageSent(m, stream.getTotalLength(), time);
+                        m = null;
+                    }
+                }
+                if (m != null) {
+                    if (DBG) Log.d(TAG, "Sending ndef via SNEP");
+                    // Serialize once; the same bytes are sent and their size is logged
+                    SnepMessage request =
+                            (prepared != null) ? prepared : SnepMessage.getPutRequest(m);
+                    if (!doSnepProtocol(request)) {
+                        return null;
+                    }
+                    onMessageSent(m, request.getNdefLength(), time);
+                }
+                if (!drainQueue()) {
                     return null;
                 }
+            }
+
+            if (DBG) Log.d(TAG, "SendTask time ms=" + (SystemClock.elapsedRealtime() - time));
+            // Make callbacks on UI thread
+            mHandler.sendEmptyMessage(MSG_SEND_COMPLETE);
+            return null;
+        }
+
+        /** Sends the queued messages one after the other over the SNEP session. */
+        boolean drainQueue() {
+            BeamQueue.Item item;
+            while ((item = mOutbound.begin()) != null) {
+                if (isCancelled()) {
+                    mOutbound.onFailed(item);
+                    return false;
+                }
+                if (DBG) Log.d(TAG, "Sending queued ndef via SNEP");
+                if (!doSnepProtocol(item.request)) {
+                    mOutbound.onFailed(item);
+                    return false;
+                }
+                onQueuedMessageSent(item);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Pushes {@code m}, if non-null, and then each queued message over NPP.
+     * NPP servers only deliver the immediate message of a connection, so
+     * every message gets a connection of its own; the first one uses
+     * {@code nppClient}. Messages not pushed when the link goes away stay
+     * queued for the next tap.
+     */
+    boolean pushNpp(NdefPushClient nppClient, NdefMessage m, long startTime) {
+        if (m != null) {
+            if (!nppClient.push(m)) {
+                return false;
+            }
+            onMessageSent(m, getMessageSize(m), startTime);
+            nppClient = new NdefPushClient();
+        }
+        BeamQueue.Item item;
+        while ((item = mOutbound.begin()) != null) {
+            synchronized (this) {
+                if (mLinkState != LINK_STATE_UP) {
+                    mOutbound.onFailed(item);
+                    nppClient.close();
+                    return false;
+                }
+            }
+            if (DBG) Log.d(TAG, "Sending queued ndef via NPP");
+            if (!nppClient.push(item.message)) {
+                mOutbound.onFailed(item);
+                return false;
+            }
+            onQueuedMessageSent(item);
+            nppClient = new NdefPushClient();
+        }
+        nppClient.close();
+        return true;
+    }
+
+    void onMessageSent(NdefMessage m, int size, long startTime) {
+        synchronized (this) {
+            mMessageSent = true;
+        }
+        onSendComplete(m, size, SystemClock.elapsedRealtime() - startTime);
+    }
+
+    void onQueuedMessageSent(BeamQueue.Item item) {
+        mOutbound.onSent(item);
+        EventLogTags.writeNfcShare(item.request.getNdefLength(), getMessageTnf(item.message),
+                getMessageType(item.message), getMessageAarPresent(item.message), 0);
+        // Make callbacks on UI thread
+        mHandler.obtainMessage(MSG_QUEUED_SEND_COMPLETE, item).sendToTarget();
+    }
+
+    /**
+     * Returns a chunked sender for {@code m} if it is a single MIME record
+     * large enough to be worth resuming, else null.
+     */
+    static SnepChunkSender createStream(NdefMessage m) {
+        NdefRecord[] records = m.getRecords();
+        if (records.length != 1 || records[0].getTnf() != NdefRecord.TNF_MIME_MEDIA) {
+            return null;
+        }
+        byte[] payload = records[0].getPayload();
+        if (payload.length < CHUNKED_BEAM_THRESHOLD ||
+                payload.length > SnepChunkReceiver.DEFAULT_MAX_LENGTH) {
+            return null;
+        }
+        String mimeType = new String(records[0].getType(), Charsets.US_ASCII);
+        return new SnepChunkSender(ByteBuffer.wrap(payload), mimeType);
+    }
+
+    /**
+     * Beams {@code stream} in chunks over the SNEP session. If the link drops,
+     * the retry after debounce resumes from the last chunk the peer confirmed.
+     * @return {@link #STREAM_UNSUPPORTED} if the peer cannot receive chunks
+     *     and the message should be sent as a regular PUT instead
+     */
+    int sendStream(SnepChunkSender stream) {
+        SnepClient snepClient;
+        synchronized (this) {
+            snepClient = mSnepClient;
+        }
+        if (snepClient == null) {
+            return STREAM_FAILED;
+        }
+
+        try {
+            if (DBG) Log.d(TAG, "Sending stream via SNEP from " + stream.getConfirmedOffset());
+            if (!stream.send(snepClient, SNEP_CHUNK_TIMEOUT_MS, mStreamTracker)) {
+                if (DBG) Log.d(TAG, "Peer does not support chunked beam");
+                synchronized (this) {
+                    if (mStreamToSend == stream) {
+                        mStreamToSend = null;
+                    }
+                }
+                return STREAM_UNSUPPORTED;
+            }
+            return STREAM_SENT;
+        } catch (IOException e) {
+            Log.i(TAG, "Chunked beam interrupted at " + stream.getConfirmedOffset());
+            closeSnepSession();
+            return STREAM_FAILED;
+        }
+    }
+
+    /** Keeps the chunk request in flight in mSnepPut, so a cancelled send closes it. */
+    final SnepChunkSender.OperationTracker mStreamTracker =
+            new SnepChunkSender.OperationTracker() {
+        @Override
+        public void onStarted(Future<SnepMessage> operation) {
+            synchronized (P2pLinkManager.this) {
+                if (mSendTask == null || mSendTask.isCancelled()) {
+                    // Cancelled before the request could be published
+                    operation.cancel(true);
+                    return;
+                }
+                mSnepPut = operation;
+            }
+        }
+
+        @Override
+        public void onFinished(Future<SnepMessage> operation) {
+            synchronized (P2pLinkManager.this) {
+                if (mSnepPut == operation) {
+                    mSnepPut = null;
+                }
+            }
+        }
+    };
+
+    /**
+     * Opens the SNEP session, or failing that an NPP connection, while the
+     * user is still confirming the send, taking the LLCP connect off the
+     * critical path. Both this and SendTask use the serial P2P
+     * {@link NfcTaskExecutor}, so a confirmed send always runs after the
+     * connect finishes and picks up whatever it opened.
+     */
+    void connectAhead() {
+        synchronized (this) {
+            cancelConnectAhead();
+            mConnectTask = new ConnectTask();
+            mConnectTask.executeOnExecutor(NfcTaskExecutor.getP2pExecutor());
+        }
+    }
 
-                result = new NdefPushClient().push(m);
+    void cancelConnectAhead() {
+        synchronized (this) {
+            if (mConnectTask != null) {
+                mConnectTask.cancel(true);
+                mConnectTask = null;
             }
-            time = SystemClock.elapsedRealtime() - time;
+        }
+    }
 
-            if (DBG) Log.d(TAG, "SendTask result=" + result + ", time ms=" + time);
+    final class ConnectTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        public Void doInBackground(Void... args) {
+            NfcTaskExecutor.restoreThreadPriority();
+            synchronized (P2pLinkManager.this) {
+                if (mLinkState != LINK_STATE_UP) {
+                    return null;
+                }
+            }
 
-            if (result) {
-                onSendComplete(m, time);
+            try {
+                if (DBG) Log.d(TAG, "Connecting ahead of confirmation");
+                connectTransport();
+            } catch (IOException e) {
+                if (DBG) Log.d(TAG, "Neither SNEP nor NPP available");
             }
             return null;
         }
     }
 
-    static boolean doSnepProtocol(NdefMessage msg) throws IOException {
+    /**
+     * Makes sure a SNEP session or an NPP connection to the peer is open.
+     * The protocol that worked for this kind of peer before is tried first;
+     * for unknown peers SNEP is tried before NPP.
+     */
+    void connectTransport() throws IOException {
+        byte[] peer;
+        synchronized (this) {
+            if (mSnepClient != null && mSnepClient.isConnected()) {
+                mSnepSessionsReused++;
+                return;
+            }
+            if (mNppClient != null) {
+                return;
+            }
+            peer = mPeerGeneralBytes;
+        }
+
+        int known = mCapabilityCache.lookup(peer);
+        int protocol;
+        if (known == PeerCapabilityCache.PROTOCOL_NPP) {
+            protocol = connectNpp() ? PeerCapabilityCache.PROTOCOL_NPP :
+                    connectSnep(true);
+        } else {
+            // Peers already known to lack compressed SNEP skip its CONNECT
+            protocol = connectSnep(known != PeerCapabilityCache.PROTOCOL_SNEP);
+            if (protocol == PeerCapabilityCache.PROTOCOL_UNKNOWN && connectNpp()) {
+                protocol = PeerCapabilityCache.PROTOCOL_NPP;
+            }
+        }
+
+        if (protocol == PeerCapabilityCache.PROTOCOL_UNKNOWN) {
+            mCapabilityCache.forget(peer);
+            throw new IOException("Neither SNEP nor NPP available.");
+        }
+        if (DBG) Log.d(TAG, "Connected over " + PeerCapabilityCache.protocolToString(protocol));
+        mCapabilityCache.record(peer, protocol);
+    }
+
+    SnepClient newSnepClient(boolean tryCompressed) {
         SnepClient snepClient = new SnepClient();
+        snepClient.setCompressionEnabled(mSnepCompression && tryCompressed);
+        return snepClient;
+    }
+
+    /**
+     * @return PROTOCOL_SNEP_DEFLATE or PROTOCOL_SNEP for the session opened,
+     *     or PROTOCOL_UNKNOWN if SNEP is not available
+     */
+    int connectSnep(boolean tryCompressed) {
+        SnepClient snepClient = newSnepClient(tryCompressed);
         try {
             snepClient.connect();
         } catch (IOException e) {
-            // Throw exception to fall back to NPP.
+            if (DBG) Log.d(TAG, "SNEP not available");
             snepClient.close();
-            throw new IOException("SNEP not available.", e);
+            return PeerCapabilityCache.PROTOCOL_UNKNOWN;
         }
+        boolean compressed = snepClient.isCompressed();
+        if (!installSnepSession(snepClient)) {
+            return PeerCapabilityCache.PROTOCOL_UNKNOWN;
+        }
+        return compressed ? PeerCapabilityCache.PROTOCOL_SNEP_DEFLATE :
+                PeerCapabilityCache.PROTOCOL_SNEP;
+    }
 
-        try {
-            snepClient.put(msg);
+    /**
+     * Keeps {@code snepClient} as the session for the current link. The
+     * session stays open across sends until the link goes down, so later
+     * sends skip the LLCP connect and service lookup.
+     */
+    boolean installSnepSession(SnepClient snepClient) {
+        synchronized (this) {
+            if (mLinkState != LINK_STATE_UP) {
+                snepClient.close();
+                return false;
+            }
+            if (mSnepClient != null) {
+                mSnepClient.close();
+            }
+            mSnepClient = snepClient;
+            mSnepSessionsOpened++;
             return true;
+        }
+    }
+
+    boolean connectNpp() {
+        NdefPushClient nppClient = new NdefPushClient();
+        try {
+            nppClient.connect();
         } catch (IOException e) {
+            if (DBG) Log.d(TAG, "NPP not available");
+            return false;
+        }
+        return installNppClient(nppClient);
+    }
+
+    boolean installNppClient(NdefPushClient nppClient) {
+        synchronized (this) {
+            if (mLinkState != LINK_STATE_UP) {
+                nppClient.close();
+                return false;
+            }
+            if (mNppClient != null) {
+                mNppClient.close();
+            }
+            mNppClient = nppClient;
+            return true;
+        }
+    }
+
+    NdefPushClient takeNppClient() {
+        synchronized (this) {
+            NdefPushClient nppClient = mNppClient;
+            mNppClient = null;
+            return nppClient;
+        }
+    }
+
+    void closeNppClient() {
+        NdefPushClient nppClient = takeNppClient();
+        if (nppClient != null) {
+            nppClient.close();
+        }
+    }
+
+    boolean doSnepProtocol(SnepMessage request) {
+        SnepClient snepClient;
+        synchronized (this) {
+            snepClient = mSnepClient;
+        }
+        if (snepClient == null) {
+            return false;
+        }
+
+        long timeout = SNEP_PUT_TIMEOUT_MS +
+                request.getNdefLength() * 1000L / SNEP_PUT_MIN_GOODPUT;
+        // Already on the P2P executor, so run the PUT in place rather than
+        // tying up a second thread waiting for it
+        RunnableFuture<SnepMessage> put = snepClient.newPut(request, timeout, null);
+        synchronized (this) {
+            mSnepPut = put;
+        }
+        try {
+            put.run();
+            SnepMessage response = put.get();
+            if (response.getField() != SnepMessage.RESPONSE_SUCCESS) {
+                // The peer refused the message; the session is still usable
+                Log.i(TAG, "SNEP put refused: " + response.getField());
+                return false;
+            }
+            LlcpTransferStats stats = snepClient.getLastPutStats();
+            if (DBG) Log.d(TAG, "SNEP put " + stats);
+            synchronized (this) {
+                mLastSnepPut = stats;
+            }
+            return true;
+        } catch (ExecutionException e) {
             // SNEP available but had errors, don't fall back to NPP.
+            Log.i(TAG, "SNEP put failed: " + e.getCause().getMessage());
+            closeSnepSession();
+        } catch (CancellationException e) {
+            if (DBG) Log.d(TAG, "SNEP put cancelled");
+            closeSnepSession();
+        } catch (InterruptedException e) {
+            // SendTask cancelled before cancelSendNdefMessage() reached the put
+            put.cancel(true);
+            closeSnepSession();
         } finally {
-            snepClient.close();
+            synchronized (this) {
+                if (mSnepPut == put) {
+                    mSnepPut = null;
+                }
+            }
         }
         return false;
     }
 
+    void closeSnepSession() {
+        SnepClient snepClient;
+        synchronized (this) {
+            snepClient = mSnepClient;
+            mSnepClient = null;
+        }
+        if (snepClient != null) {
+            snepClient.close();
+        }
+    }
+
     final NdefPushServer.Callback mNppCallback = new NdefPushServer.Callback() {
         @Override
         public void onMessageReceived(NdefMessage msg) {
             onReceiveComplete(msg);
         }
+
+        @Override
+        public void onBackgroundMessageReceived(NdefMessage msg) {
+            if (DBG) Log.d(TAG, "NPP background message");
+            EventLogTags.writeNfcNdefReceived(getMessageSize(msg), getMessageTnf(msg),
+                    getMessageType(msg), getMessageAarPresent(msg));
+            // Make callbacks on UI thread
+            mHandler.obtainMessage(MSG_BACKGROUND_RECEIVE, msg).sendToTarget();
+        }
     };
 
     final SnepServer.Callback mDefaultSnepCallback = new SnepServer.Callback() {
         @Override
         public SnepMessage doPut(NdefMessage msg) {
+            SnepMessage response = mChunkReceiver.doPut(msg);
+            if (response != null) {
+                return response;
+            }
             onReceiveComplete(msg);
             return SnepMessage.getMessage(SnepMessage.RESPONSE_SUCCESS);
         }
 
         @Override
         public SnepMessage doGet(int acceptableLength, NdefMessage msg) {
-            if (DBG) Log.d(TAG, "GET not supported.");
-            return SnepMessage.getMessage(SnepMessage.RESPONSE_NOT_IMPLEMENTED);
+            SnepMessage response = mChunkReceiver.doGet(msg);
+            if (response != null) {
+                return response;
+            }
+            return mContentStore.doGet(acceptableLength, msg);
+        }
+    };
+
+    final SnepChunkReceiver.Callback mChunkCallback = new SnepChunkReceiver.Callback() {
+        @Override
+        public boolean onTransferComplete(String mimeType, PayloadSpool payload) {
+            // The payload is held on the heap until it has been dispatched
+            int length = payload.length();
+            if (!mReceiveBudget.reserve(length)) {
+                Log.w(TAG, "No room for a chunked transfer of " + length + " bytes");
+                return false;
+            }
+            NdefMessage msg;
+            try {
+                NdefRecord record = new NdefRecord(NdefRecord.TNF_MIME_MEDIA,
+                        mimeType.getBytes(Charsets.US_ASCII), new byte[0],
+                        payload.toByteArray());
+                msg = new NdefMessage(new NdefRecord[] { record });
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read chunked transfer", e);
+                mReceiveBudget.release(length);
+                return false;
+            }
+            onReceiveComplete(msg, length);
+            return true;
         }
     };
 
     void onReceiveComplete(NdefMessage msg) {
+        onReceiveComplete(msg, 0);
+    }
+
+    /**
+     * @param reserved bytes reserved against mReceiveBudget for {@code msg},
+     *     released once it has been dispatched
+     */
+    void onReceiveComplete(NdefMessage msg, int reserved) {
         EventLogTags.writeNfcNdefReceived(getMessageSize(msg), getMessageTnf(msg),
                 getMessageType(msg), getMessageAarPresent(msg));
         // Make callbacks on UI thread
-        mHandler.obtainMessage(MSG_RECEIVE_COMPLETE, msg).sendToTarget();
+        mHandler.obtainMessage(MSG_RECEIVE_COMPLETE, reserved, 0, msg).sendToTarget();
     }
 
     @Override
@@ -421,28 +1139,32 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
                                 getMessageAarPresent(mMessageToSend));
                     }
                     if (DBG) Log.d(TAG, "Debounce timeout");
+                    cancelPrepare();
+                    LlcpBufferPool.getLinkPool().clear();
+                    mChunkReceiver.clear();
+                    unpublishMessageToSend();
+                    LlcpSocketTuner.getInstance().onLinkDeactivated();
                     mLinkState = LINK_STATE_DOWN;
                     mSendState = SEND_STATE_NOTHING_TO_SEND;
                     mMessageToSend = null;
+                    mRequestToSend = null;
+                    mStreamToSend = null;
                     if (DBG) Log.d(TAG, "onP2pOutOfRange()");
                     mEventListener.onP2pOutOfRange();
                 }
                 break;
             case MSG_RECEIVE_COMPLETE:
-                NdefMessage m = (NdefMessage) msg.obj;
-                synchronized (this) {
-                    if (mLinkState == LINK_STATE_DOWN) {
-                        break;
-                    }
-                    if (mSendState == SEND_STATE_SENDING) {
-                        cancelSendNdefMessage();
+                try {
+                    handleReceiveComplete((NdefMessage) msg.obj);
+                } finally {
+                    if (msg.arg1 > 0) {
+                        mReceiveBudget.release(msg.arg1);
                     }
-                    mSendState = SEND_STATE_NOTHING_TO_SEND;
-                    if (DBG) Log.d(TAG, "onP2pReceiveComplete()");
-                    mEventListener.onP2pReceiveComplete();
-                    NfcService.getInstance().sendMockNdefTag(m);
                 }
                 break;
+            case MSG_BACKGROUND_RECEIVE:
+                handleBackgroundReceive((NdefMessage) msg.obj);
+                break;
             case MSG_SEND_COMPLETE:
                 synchronized (P2pLinkManager.this) {
                     mSendTask = null;
@@ -453,7 +1175,7 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
                     mSendState = SEND_STATE_NOTHING_TO_SEND;
                     if (DBG) Log.d(TAG, "onP2pSendComplete()");
                     mEventListener.onP2pSendComplete();
-                    if (mCallbackNdef != null) {
+                    if (mCallbackNdef != null && mMessageToSend != null) {
                         try {
                             mCallbackNdef.onNdefPushComplete();
                         } catch (RemoteException e) { }
@@ -461,10 +1183,78 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
                     mSendTask = null;
                 }
                 break;
+            case MSG_PREPARE_TIMEOUT:
+                synchronized (this) {
+                    if (msg.arg1 != mPrepareGeneration) {
+                        break;
+                    }
+                    Log.w(TAG, "App did not create its NDEF message in time");
+                    mPrepareTimeouts++;
+                    onMessagePrepared(msg.arg1,
+                            getFallbackNdef(mStaticNdef, !mOutbound.isEmpty()));
+                }
+                break;
+            case MSG_QUEUED_SEND_COMPLETE:
+                BeamQueue.Item item = (BeamQueue.Item) msg.obj;
+                if (item.callback != null) {
+                    try {
+                        item.callback.onNdefPushComplete();
+                    } catch (RemoteException e) { }
+                }
+                break;
         }
         return true;
     }
 
+    /**
+     * Must be called on UI Thread.
+     */
+    void handleReceiveComplete(NdefMessage m) {
+        synchronized (this) {
+            if (mLinkState == LINK_STATE_DOWN) {
+                return;
+            }
+            if (mFullDuplex && (mSendState == SEND_STATE_SENDING ||
+                    mSendState == SEND_STATE_NEED_CONFIRMATION)) {
+                // The SNEP and NPP servers run independently of
+                // SendTask, so both directions share the link, and
+                // a beam still waiting for confirmation stays on offer
+                mDuplexReceives++;
+                if (DBG) Log.d(TAG, "onP2pDuplexReceiveComplete()");
+                mEventListener.onP2pDuplexReceiveComplete();
+                dispatchMockTag(m);
+                return;
+            }
+            if (mSendState == SEND_STATE_SENDING) {
+                cancelSendNdefMessage();
+            }
+            cancelPrepare();
+            mSendState = SEND_STATE_NOTHING_TO_SEND;
+            if (DBG) Log.d(TAG, "onP2pReceiveComplete()");
+            mEventListener.onP2pReceiveComplete();
+            dispatchMockTag(m);
+        }
+    }
+
+    /**
+     * Dispatches an NPP background message. Unlike an immediate message it
+     * shows no receive UI and leaves any send or preparation running.
+     * Must be called on UI Thread.
+     */
+    void handleBackgroundReceive(NdefMessage m) {
+        synchronized (this) {
+            if (mLinkState == LINK_STATE_DOWN) {
+                return;
+            }
+            mBackgroundReceives++;
+        }
+        dispatchMockTag(m);
+    }
+
+    void dispatchMockTag(NdefMessage m) {
+        NfcService.getInstance().sendMockNdefTag(m);
+    }
+
     int getMessageSize(NdefMessage msg) {
         if (msg != null) {
             return msg.toByteArray().length;
@@ -531,12 +1321,37 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
                 return;
             }
             mSendState = SEND_STATE_SENDING;
+            publishMessageToSend();
             if (mLinkState == LINK_STATE_UP) {
                 sendNdefMessage();
             }
         }
     }
 
+    /**
+     * Lets the peer also pull the message the user just confirmed, with a
+     * SNEP GET for its first record, until the link goes down. Nothing is
+     * offered before confirmation.
+     */
+    void publishMessageToSend() {
+        synchronized (this) {
+            unpublishMessageToSend();
+            if (mMessageToSend != null) {
+                mPublishedKey = mMessageToSend.getRecords()[0];
+                mContentStore.publish(mPublishedKey, mMessageToSend);
+            }
+        }
+    }
+
+    void unpublishMessageToSend() {
+        synchronized (this) {
+            if (mPublishedKey != null) {
+                mContentStore.unpublish(mPublishedKey);
+                mPublishedKey = null;
+            }
+        }
+    }
+
     static String sendStateToString(int state) {
         switch (state) {
             case SEND_STATE_NOTHING_TO_SEND:
@@ -569,10 +1384,35 @@ public class P2pLinkManager implements Handler.Callback, P2pEventListener.Callba
             pw.println("mIsReceiveEnabled=" + mIsReceiveEnabled);
             pw.println("mLinkState=" + linkStateToString(mLinkState));
             pw.println("mSendState=" + sendStateToString(mSendState));
+            pw.println("full duplex=" + mFullDuplex + " receives during send=" +
+                    mDuplexReceives + " background receives=" + mBackgroundReceives);
 
             pw.println("mStaticNdef=" + mStaticNdef);
             pw.println("mCallbackNdef=" + mCallbackNdef);
+            pw.println("prepare timeouts=" + mPrepareTimeouts);
+            synchronized (mDefaultNdefs) {
+                pw.println("default ndef cache: entries=" + mDefaultNdefs.size() + " hits=" +
+                        mDefaultNdefHits + " misses=" + mDefaultNdefMisses);
+            }
             pw.println("mMessageToSend=" + mMessageToSend);
+            pw.println("mStreamToSend=" + mStreamToSend);
+            pw.println("outbound queue: " + mOutbound);
+            for (BeamQueue.Item item : mOutbound.toArray()) {
+                pw.println("  owner=" + item.owner + " priority=" + item.priority + " size=" +
+                        item.request.getNdefLength());
+            }
+            pw.println("chunked receive: " + mChunkReceiver);
+            pw.println("peer capabilities: " + mCapabilityCache);
+            pw.println("snep sessions: opened=" + mSnepSessionsOpened + " reused=" +
+                    mSnepSessionsReused + " connected=" + (mSnepClient != null) +
+                    " compressed=" + (mSnepClient != null && mSnepClient.isCompressed()));
+            pw.println("last snep put: " + mLastSnepPut);
+            pw.println("snep compression: " + SnepCompression.getStats());
+            pw.println("snep receive budget: " + mDefaultSnepServer.getReceiveBudget());
+            pw.println("snep get content: " + mContentStore);
+            pw.println("llcp buffer pool: " + LlcpBufferPool.getLinkPool());
+            pw.println("llcp connections: " + LlcpConnectionExecutor.getInstance());
+            mServiceHost.dump(pw);
         }
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * File-backed buffer for chunked inbound P2P transfers.
+ *
+ * <p>Chunks are appended to an unlinked file in the cache directory as
+ * they arrive, so a partial transfer survives a dropped link without
+ * holding its data on the heap. Once complete the payload is exposed as a
+ * read-only memory-mapped buffer.
+ *
+ * <p>Spooling is off until {@link #configure} is called.
+ */
+public final class PayloadSpool {
+    static final String TAG = "PayloadSpool";
+    static final boolean DBG = false;
+
+    static final String PREFIX = "llcp";
+    static final String SUFFIX = ".spool";
+
+    // Protected by PayloadSpool.class
+    static File sDirectory;
+    static int sSpooled;
+    static long sSpooledBytes;
+    static int sFailed;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private int mLength;
+    private MappedByteBuffer mMapped;
+
+    /**
+     * Enables spooling into {@code directory}, or disables spooling if
+     * {@code directory} is null. Leftover spool files are deleted.
+     */
+    public static synchronized void configure(File directory) {
+        sDirectory = directory;
+        if (directory == null) {
+            return;
+        }
+        File[] stale = directory.listFiles();
+        if (stale != null) {
+            for (File f : stale) {
+                if (f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX)) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an empty spool.
+     * @throws IOException if spooling is not configured or the file cannot
+     *     be created
+     */
+    public static PayloadSpool create() throws IOException {
+        File directory;
+        synchronized (PayloadSpool.class) {
+            directory = sDirectory;
+        }
+        if (directory == null) {
+            throw new IOException("Payload spooling is not configured");
+        }
+        try {
+            return new PayloadSpool(directory);
+        } catch (IOException e) {
+            synchronized (PayloadSpool.class) {
+                sFailed++;
+            }
+            throw e;
+        }
+    }
+
+    private PayloadSpool(File directory) throws IOException {
+        File file = File.createTempFile(PREFIX, SUFFIX, directory);
+        try {
+            mFile = new RandomAccessFile(file, "rw");
+        } finally {
+            // The open descriptor keeps the data alive; nothing to clean up later
+            file.delete();
+        }
+        mChannel = mFile.getChannel();
+        if (DBG) Log.d(TAG, "created spool in " + directory);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (mMapped != null) {
+            throw new IOException("Spool already mapped");
+        }
+        ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+        while (src.hasRemaining()) {
+            mChannel.write(src);
+        }
+        mLength += length;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * Maps the spooled payload read-only. No more data can be written
+     * afterwards. The returned buffer stays valid after {@link #close()}.
+     */
+    public MappedByteBuffer map() throws IOException {
+        if (mMapped == null) {
+            mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+            synchronized (PayloadSpool.class) {
+                sSpooled++;
+                sSpooledBytes += mLength;
+            }
+        }
+        return mMapped;
+    }
+
+    /** Copies the payload out of the mapping, for APIs that only take arrays. */
+    public byte[] toByteArray() throws IOException {
+        ByteBuffer mapped = map().duplicate();
+        mapped.rewind();
+        byte[] bytes = new byte[mLength];
+        mapped.get(bytes);
+        return bytes;
+    }
+
+    public void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public static synchronized String dumpStats() {
+        return "enabled=" + (sDirectory != null) +
+                " spooled=" + sSpooled + " spooledBytes=" + sSpooledBytes +
+                " failed=" + sFailed;
+    }
+}
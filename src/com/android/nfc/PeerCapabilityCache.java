@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which push protocol last worked for a peer, keyed by the LLCP
+ * parameters the peer sent in its NFC-DEP general bytes. Peers running the
+ * same stack advertise the same parameters, so the key identifies the kind
+ * of peer rather than the individual device.
+ */
+class PeerCapabilityCache {
+    static final int PROTOCOL_UNKNOWN = 0;
+    static final int PROTOCOL_SNEP = 1;
+    static final int PROTOCOL_NPP = 2;
+    static final int PROTOCOL_SNEP_DEFLATE = 3;  // SNEP, also offering compressed SNEP
+
+    static final int MAX_ENTRIES = 16;
+
+    /** Byte array wrapper with value equality, for use as a map key */
+    static final class PeerKey {
+        final byte[] mBytes;
+        final int mHashCode;
+
+        PeerKey(byte[] bytes) {
+            mBytes = bytes.clone();
+            mHashCode = Arrays.hashCode(mBytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof PeerKey) && Arrays.equals(mBytes, ((PeerKey) o).mBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    // Protected by 'this'
+    final LinkedHashMap<PeerKey, Integer> mProtocols =
+            new LinkedHashMap<PeerKey, Integer>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PeerKey, Integer> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    int mHits;
+    int mMisses;
+
+    /** Returns the protocol recorded for the peer, or PROTOCOL_UNKNOWN. */
+    synchronized int lookup(byte[] generalBytes) {
+        if (generalBytes == null) {
+            mMisses++;
+            return PROTOCOL_UNKNOWN;
+        }
+        Integer protocol = mProtocols.get(new PeerKey(generalBytes));
+        if (protocol == null) {
+            mMisses++;
+            return PROTOCOL_UNKNOWN;
+        }
+        mHits++;
+        return protocol;
+    }
+
+    synchronized void record(byte[] generalBytes, int protocol) {
+        if (generalBytes != null) {
+            mProtocols.put(new PeerKey(generalBytes), protocol);
+        }
+    }
+
+    synchronized void forget(byte[] generalBytes) {
+        if (generalBytes != null) {
+            mProtocols.remove(new PeerKey(generalBytes));
+        }
+    }
+
+    static String protocolToString(int protocol) {
+        switch (protocol) {
+            case PROTOCOL_SNEP:
+                return "SNEP";
+            case PROTOCOL_NPP:
+                return "NPP";
+            case PROTOCOL_SNEP_DEFLATE:
+                return "SNEP (deflate)";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries=" + mProtocols.size() + " hits=" + mHits + " misses=" + mMisses;
+    }
+}
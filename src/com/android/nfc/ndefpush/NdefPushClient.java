@@ -17,6 +17,8 @@
 package com.android.nfc.ndefpush;
 
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpFragmentWriter;
+import com.android.nfc.LlcpSocketTuner;
 import com.android.nfc.LlcpException;
 import com.android.nfc.NfcService;
 
@@ -24,7 +26,6 @@ import android.nfc.NdefMessage;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 /**
  * Simple client to push the local NDEF message to a server on the remote side of an
@@ -32,37 +33,94 @@ import java.util.Arrays;
  */
 public class NdefPushClient {
     private static final String TAG = "NdefPushClient";
-    private static final int MIU = 128;
     private static final boolean DBG = true;
 
-    public boolean push(NdefMessage msg) {
-        NfcService service = NfcService.getInstance();
+    // Protected by 'this', non-null while connected ahead of push()
+    private LlcpSocket mSocket;
 
-        // We only handle a single immediate action for now
-        NdefPushProtocol proto = new NdefPushProtocol(msg, NdefPushProtocol.ACTION_IMMEDIATE);
-        byte[] buffer = proto.toByteArray();
-        int offset = 0;
-        int remoteMiu;
+    /**
+     * Connects to the NPP server ahead of {@link #push}, so that the
+     * connection setup can overlap with other work.
+     */
+    public void connect() throws IOException {
+        LlcpSocket sock;
+        synchronized (this) {
+            if (mSocket != null) {
+                throw new IOException("Socket already in use.");
+            }
+        }
+        try {
+            sock = createAndConnect();
+        } catch (LlcpException e) {
+            throw new IOException("Could not connect to socket", e);
+        }
+        synchronized (this) {
+            mSocket = sock;
+        }
+    }
+
+    private LlcpSocket createAndConnect() throws IOException, LlcpException {
+        NfcService service = NfcService.getInstance();
         LlcpSocket sock = null;
+        boolean connected = false;
         try {
             if (DBG) Log.d(TAG, "about to create socket");
             // Connect to the my tag server on the remote side
-            sock = service.createLlcpSocket(0, MIU, 1, 1024);
+            LlcpSocketTuner.Params params =
+                    LlcpSocketTuner.getInstance().getClientParams(NdefPushServer.SERVICE_NAME);
+            sock = service.createLlcpSocket(0, params.miu, params.rw,
+                    params.linearBufferLength);
             if (sock == null) {
                 throw new IOException("Could not connect to socket.");
             }
             if (DBG) Log.d(TAG, "about to connect to service " + NdefPushServer.SERVICE_NAME);
-            sock.connectToService(NdefPushServer.SERVICE_NAME);
+            service.connectLlcpSocketToService(sock, NdefPushServer.SERVICE_NAME);
+            connected = true;
+            return sock;
+        } finally {
+            if (!connected && sock != null) {
+                try {
+                    sock.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Pushes {@code msg}, using the connection made by {@link #connect} if
+     * there is one. The connection is always closed afterwards.
+     */
+    public boolean push(NdefMessage msg) {
+        return push(new NdefPushProtocol(msg, NdefPushProtocol.ACTION_IMMEDIATE));
+    }
+
+    /**
+     * Pushes several messages over one connection, each with its own
+     * {@link NdefPushProtocol} action. The connection is always closed
+     * afterwards.
+     */
+    public boolean push(byte[] actions, NdefMessage[] messages) {
+        return push(new NdefPushProtocol(actions, messages));
+    }
+
+    private boolean push(NdefPushProtocol proto) {
+        byte[] buffer = proto.toByteArray();
+        int remoteMiu;
+        LlcpSocket sock;
+        synchronized (this) {
+            sock = mSocket;
+            mSocket = null;
+        }
+        try {
+            if (sock == null) {
+                sock = createAndConnect();
+            }
 
             remoteMiu = sock.getRemoteMiu();
             if (DBG) Log.d(TAG, "about to send a " + buffer.length + " byte message");
-            while (offset < buffer.length) {
-                int length = Math.min(buffer.length - offset, remoteMiu);
-                byte[] tmpBuffer = Arrays.copyOfRange(buffer, offset, offset+length);
-                if (DBG) Log.d(TAG, "about to send a " + length + " byte packet");
-                sock.send(tmpBuffer);
-                offset += length;
-            }
+            LlcpFragmentWriter.write(sock, buffer, 0, buffer.length, remoteMiu);
             return true;
         } catch (IOException e) {
             Log.e(TAG, "couldn't send tag");
@@ -83,4 +141,20 @@ public class NdefPushClient {
         }
         return false;
     }
+
+    /** Closes a connection made by {@link #connect} that was never used. */
+    public void close() {
+        LlcpSocket sock;
+        synchronized (this) {
+            sock = mSocket;
+            mSocket = null;
+        }
+        if (sock != null) {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.ndefpush;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+/**
+ * Incremental decoder for an NPP message set.
+ *
+ * <p>Fragments are fed in as they are received. The version, message
+ * count, and each message's action and length are parsed as they arrive;
+ * each message body is written straight into a buffer of its declared
+ * length and parsed as soon as its last byte is in. The set is complete
+ * once the declared number of messages has been read, without waiting for
+ * the peer to close the connection.
+ *
+ * <p>A declared body length is checked against the bytes the set may
+ * still occupy before its buffer is allocated.
+ */
+final class NdefPushDecoder {
+    private static final String TAG = "NdefPushDecoder";
+    private static final boolean DBG = false;
+
+    private static final int STATE_VERSION = 0;
+    private static final int STATE_COUNT = 1;
+    private static final int STATE_ACTION = 2;
+    private static final int STATE_LENGTH = 3;
+    private static final int STATE_BODY = 4;
+    private static final int STATE_DONE = 5;
+
+    // Largest number of bytes the whole set may occupy
+    private final int mMaxLength;
+    private int mConsumed;
+
+    private int mState = STATE_VERSION;
+    private final byte[] mField = new byte[4];
+    private int mFieldRead;
+    private int mNumMessages;
+
+    private final ByteArrayOutputStream mActions = new ByteArrayOutputStream();
+    private final ArrayList<NdefMessage> mMessages = new ArrayList<NdefMessage>();
+
+    private byte[] mBody;
+    private int mBodyLength;
+    private int mBodyRead;
+
+    /**
+     * @param maxLength the most bytes the set may occupy: the length of the
+     *     data when it is already in hand, or a limit for a streamed set
+     */
+    NdefPushDecoder(int maxLength) {
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * Consumes {@code length} bytes of {@code data} starting at {@code offset}.
+     * Bytes past the end of a complete set are ignored.
+     *
+     * @throws FormatException if the data is not a valid NPP message set
+     */
+    void feed(byte[] data, int offset, int length) throws FormatException {
+        int start = offset;
+        int end = offset + length;
+        while (offset < end && mState != STATE_DONE) {
+            switch (mState) {
+                case STATE_VERSION:
+                    byte version = data[offset++];
+                    if (version != NdefPushProtocol.VERSION) {
+                        throw new FormatException("Got version " + version + ",  expected " +
+                                NdefPushProtocol.VERSION);
+                    }
+                    mState = STATE_COUNT;
+                    break;
+                case STATE_COUNT:
+                    offset = readField(data, offset, end);
+                    if (mFieldRead == mField.length) {
+                        mNumMessages = takeInt();
+                        if (mNumMessages <= 0) {
+                            throw new FormatException("No NdefMessage inside NdefMessageSet packet");
+                        }
+                        mState = STATE_ACTION;
+                    }
+                    break;
+                case STATE_ACTION:
+                    mActions.write(data[offset++]);
+                    mState = STATE_LENGTH;
+                    break;
+                case STATE_LENGTH:
+                    offset = readField(data, offset, end);
+                    if (mFieldRead == mField.length) {
+                        startBody(takeInt(), mMaxLength - (mConsumed + offset - start));
+                    }
+                    break;
+                case STATE_BODY:
+                    int n = Math.min(end - offset, mBodyLength - mBodyRead);
+                    System.arraycopy(data, offset, mBody, mBodyRead, n);
+                    mBodyRead += n;
+                    offset += n;
+                    if (mBodyRead == mBodyLength) {
+                        finishBody();
+                    }
+                    break;
+            }
+        }
+        mConsumed += offset - start;
+        if (offset < end && DBG) Log.d(TAG, "ignoring " + (end - offset) + " trailing bytes");
+    }
+
+    private int readField(byte[] data, int offset, int end) {
+        while (offset < end && mFieldRead < mField.length) {
+            mField[mFieldRead++] = data[offset++];
+        }
+        return offset;
+    }
+
+    private int takeInt() {
+        mFieldRead = 0;
+        return ((mField[0] & 0xFF) << 24) | ((mField[1] & 0xFF) << 16) |
+                ((mField[2] & 0xFF) << 8) | (mField[3] & 0xFF);
+    }
+
+    private void startBody(int length, int available) throws FormatException {
+        if (length <= 0 || length > available) {
+            throw new FormatException("Invalid length " + length + " for message " +
+                    mMessages.size() + ", " + available + " bytes available");
+        }
+        mBodyLength = length;
+        mBodyRead = 0;
+        mBody = new byte[length];
+        mState = STATE_BODY;
+    }
+
+    private void finishBody() throws FormatException {
+        byte[] bytes = mBody;
+        release();
+        mMessages.add(new NdefMessage(bytes));
+        if (DBG) Log.d(TAG, "message " + mMessages.size() + " of " + mNumMessages + " complete");
+        mState = (mMessages.size() == mNumMessages) ? STATE_DONE : STATE_ACTION;
+    }
+
+    /** True once every declared message has been read. */
+    boolean isComplete() {
+        return mState == STATE_DONE;
+    }
+
+    /** Returns the decoded set; only valid once {@link #isComplete}. */
+    NdefPushProtocol getProtocol() {
+        return new NdefPushProtocol(mActions.toByteArray(),
+                mMessages.toArray(new NdefMessage[mMessages.size()]));
+    }
+
+    /** Drops the body being received. */
+    void release() {
+        mBody = null;
+    }
+}
@@ -21,10 +21,7 @@ import android.util.Log;
 import android.nfc.NdefMessage;
 import android.nfc.FormatException;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Implementation of the NDEF Push Protocol.
@@ -34,7 +31,7 @@ public class NdefPushProtocol {
     public static final byte ACTION_BACKGROUND = (byte) 0x02;
 
     private static final String TAG = "NdefMessageSet";
-    private static final byte VERSION = 1;
+    static final byte VERSION = 1;
 
     private int mNumMessages;
     private byte[] mActions;
@@ -64,75 +61,21 @@ public class NdefPushProtocol {
     }
 
     public NdefPushProtocol(byte[] data) throws FormatException {
-        ByteArrayInputStream buffer = new ByteArrayInputStream(data);
-        DataInputStream input = new DataInputStream(buffer);
-
-        // Check version of protocol
-        byte version;
+        NdefPushDecoder decoder = new NdefPushDecoder(data.length);
         try {
-            version = input.readByte();
-        } catch (java.io.IOException e) {
-            Log.w(TAG, "Unable to read version");
-            throw new FormatException("Unable to read version");
-        }
-
-        if(version != VERSION) {
-            Log.w(TAG, "Got version " + version + ",  expected " + VERSION);
-            throw new FormatException("Got version " + version + ",  expected " + VERSION);
-        }
-
-        // Read numMessages
-        try {
-            mNumMessages = input.readInt();
-        } catch(java.io.IOException e) {
-            Log.w(TAG, "Unable to read numMessages");
-            throw new FormatException("Error while parsing NdefMessageSet");
+            decoder.feed(data, 0, data.length);
+        } catch (FormatException e) {
+            Log.w(TAG, e.getMessage());
+            throw e;
         }
-        if(mNumMessages == 0) {
-            Log.w(TAG, "No NdefMessage inside NdefMessageSet packet");
+        if (!decoder.isComplete()) {
+            Log.w(TAG, "Truncated NdefMessageSet of " + data.length + " bytes");
             throw new FormatException("Error while parsing NdefMessageSet");
         }
-
-        // Read actions and messages
-        mActions = new byte[mNumMessages];
-        mMessages = new NdefMessage[mNumMessages];
-        for(int i = 0; i < mNumMessages; i++) {
-            // Read action
-            try {
-                mActions[i] = input.readByte();
-            } catch(java.io.IOException e) {
-                Log.w(TAG, "Unable to read action for message " + i);
-                throw new FormatException("Error while parsing NdefMessageSet");
-            }
-            // Read message length
-            int length;
-            try {
-                length = input.readInt();
-            } catch(java.io.IOException e) {
-                Log.w(TAG, "Unable to read length for message " + i);
-                throw new FormatException("Error while parsing NdefMessageSet");
-            }
-            byte[] bytes = new byte[length];
-            // Read message
-            int lengthRead;
-            try {
-                lengthRead = input.read(bytes);
-            } catch(java.io.IOException e) {
-                Log.w(TAG, "Unable to read bytes for message " + i);
-                throw new FormatException("Error while parsing NdefMessageSet");
-            }
-            if(length != lengthRead) {
-                Log.w(TAG, "Read " + lengthRead + " bytes but expected " +
-                    length);
-                throw new FormatException("Error while parsing NdefMessageSet");
-            }
-            // Create and store NdefMessage
-            try {
-                mMessages[i] = new NdefMessage(bytes);
-            } catch(FormatException e) {
-                throw e;
-            }
-        }
+        NdefPushProtocol set = decoder.getProtocol();
+        mNumMessages = set.mNumMessages;
+        mActions = set.mActions;
+        mMessages = set.mMessages;
     }
 
     public NdefMessage getImmediate() {
@@ -145,23 +88,45 @@ public class NdefPushProtocol {
         return null;
     }
 
-    public byte[] toByteArray() {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
-        DataOutputStream output = new DataOutputStream(buffer);
-
-        try {
-            output.writeByte(VERSION);
-            output.writeInt(mNumMessages);
-            for(int i = 0; i < mNumMessages; i++) {
-                output.writeByte(mActions[i]);
-                byte[] bytes = mMessages[i].toByteArray();
-                output.writeInt(bytes.length);
-                output.write(bytes);
+    /** Returns the messages to be handled without user interaction, in order. */
+    public NdefMessage[] getBackground() {
+        int count = 0;
+        for (int i = 0; i < mNumMessages; i++) {
+            if (mActions[i] == ACTION_BACKGROUND) {
+                count++;
             }
-        } catch(java.io.IOException e) {
-            return null;
         }
+        NdefMessage[] background = new NdefMessage[count];
+        count = 0;
+        for (int i = 0; i < mNumMessages; i++) {
+            if (mActions[i] == ACTION_BACKGROUND) {
+                background[count++] = mMessages[i];
+            }
+        }
+        return background;
+    }
 
-        return buffer.toByteArray();
+    public int getMessageCount() {
+        return mNumMessages;
+    }
+
+    public byte[] toByteArray() {
+        // Serialize each message once and size the output exactly
+        byte[][] encoded = new byte[mNumMessages][];
+        int length = 1 + 4;
+        for (int i = 0; i < mNumMessages; i++) {
+            encoded[i] = mMessages[i].toByteArray();
+            length += 1 + 4 + encoded[i].length;
+        }
+
+        ByteBuffer output = ByteBuffer.allocate(length);
+        output.put(VERSION);
+        output.putInt(mNumMessages);
+        for (int i = 0; i < mNumMessages; i++) {
+            output.put(mActions[i]);
+            output.putInt(encoded[i].length);
+            output.put(encoded[i]);
+        }
+        return output.array();
     }
 }
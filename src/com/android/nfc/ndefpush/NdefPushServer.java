@@ -16,17 +16,17 @@
 
 package com.android.nfc.ndefpush;
 
-import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
-import com.android.nfc.LlcpException;
-import com.android.nfc.NfcService;
+import com.android.nfc.LlcpBufferPool;
+import com.android.nfc.LlcpConnectionExecutor;
+import com.android.nfc.LlcpServiceHost;
+import com.android.nfc.LlcpSocketTuner;
 
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
 import android.nfc.NfcAdapter;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /**
@@ -43,15 +43,27 @@ public class NdefPushServer {
 
     static final String SERVICE_NAME = "com.android.npp";
 
-    NfcService mService = NfcService.getInstance();
+    static final int STOP_TIMEOUT_MS = 500;
+
+    /** Largest message set accepted from a peer */
+    static final int MAX_SET_LENGTH = 512 * 1024;
+
+    /** Background messages delivered per connection; the rest are dropped */
+    static final int MAX_BACKGROUND_MESSAGES = 4;
 
     final Callback mCallback;
 
-    /** Protected by 'this', null when stopped, non-null when running */
-    ServerThread mServerThread = null;
+    /** Protected by 'this', only used when started with {@link #start()} */
+    LlcpServiceHost mServiceHost = null;
 
     public interface Callback {
         void onMessageReceived(NdefMessage msg);
+
+        /**
+         * Called for each {@link NdefPushProtocol#ACTION_BACKGROUND} message
+         * of a push, at most {@link #MAX_BACKGROUND_MESSAGES} per connection.
+         */
+        void onBackgroundMessageReceived(NdefMessage msg);
     }
 
     public NdefPushServer(final int sap, Callback callback) {
@@ -59,138 +71,134 @@ public class NdefPushServer {
         mCallback = callback;
     }
 
-    /** Connection class, used to handle incoming connections */
-    private class ConnectionThread extends Thread {
+    /**
+     * Connection class, used to handle incoming connections. Runs on the
+     * shared {@link LlcpConnectionExecutor}.
+     */
+    private class ConnectionTask implements Runnable {
         private LlcpSocket mSock;
 
-        ConnectionThread(LlcpSocket sock) {
-            super(TAG);
+        ConnectionTask(LlcpSocket sock) {
             mSock = sock;
         }
 
         @Override
         public void run() {
             if (DBG) Log.d(TAG, "starting connection thread");
+            LlcpBufferPool pool = LlcpBufferPool.getLinkPool();
+            byte[] partial = pool.acquire(1024);
+            NdefPushDecoder decoder = new NdefPushDecoder(MAX_SET_LENGTH);
             try {
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
-                byte[] partial = new byte[1024];
                 int size;
-                boolean connectionBroken = false;
 
-                // Get raw data from remote server
-                while(!connectionBroken) {
+                // Parse fragments as they arrive, up to the last declared byte
+                while (!decoder.isComplete()) {
                     try {
                         size = mSock.receive(partial);
                         if (DBG) Log.d(TAG, "read " + size + " bytes");
-                        if (size < 0) {
-                            connectionBroken = true;
-                            break;
-                        } else {
-                            buffer.write(partial, 0, size);
-                        }
                     } catch (IOException e) {
                         // Connection broken
-                        connectionBroken = true;
                         if (DBG) Log.d(TAG, "connection broken by IOException", e);
+                        break;
+                    }
+                    if (size < 0) {
+                        break;
                     }
+                    decoder.feed(partial, 0, size);
                 }
 
-                // Build NDEF message set from the stream
-                NdefPushProtocol msg = new NdefPushProtocol(buffer.toByteArray());
-                if (DBG) Log.d(TAG, "got message " + msg.toString());
+                if (!decoder.isComplete()) {
+                    Log.e(TAG, "connection closed before the NDEF message set ended, ignoring");
+                } else {
+                    NdefPushProtocol msg = decoder.getProtocol();
+                    if (DBG) Log.d(TAG, "got message " + msg.toString());
 
-                // Send the intent for the fake tag
-                mCallback.onMessageReceived(msg.getImmediate());
+                    // Send the intent for the fake tag
+                    NdefMessage immediate = msg.getImmediate();
+                    if (immediate != null) {
+                        mCallback.onMessageReceived(immediate);
+                    }
+                    NdefMessage[] background = msg.getBackground();
+                    int count = Math.min(background.length, MAX_BACKGROUND_MESSAGES);
+                    if (count < background.length) {
+                        Log.w(TAG, "dropping " + (background.length - count) +
+                                " background messages");
+                    }
+                    for (int i = 0; i < count; i++) {
+                        mCallback.onBackgroundMessageReceived(background[i]);
+                    }
+                }
             } catch (FormatException e) {
                 Log.e(TAG, "badly formatted NDEF message, ignoring", e);
             } finally {
+                decoder.release();
                 try {
                     if (DBG) Log.d(TAG, "about to close");
                     mSock.close();
                 } catch (IOException e) {
                     // ignore
                 }
+                pool.release(partial);
             }
             if (DBG) Log.d(TAG, "finished connection thread");
         }
     };
 
-    /** Server class, used to listen for incoming connection request */
-    class ServerThread extends Thread {
-        boolean mRunning = true;
-        LlcpServerSocket mServerSocket;
-
+    /** Hands connections accepted on the service socket to the connection pool */
+    final LlcpServiceHost.Handler mServiceHandler = new LlcpServiceHost.Handler() {
         @Override
-        public void run() {
-            while (mRunning) {
-                if (DBG) Log.d(TAG, "about create LLCP service socket");
-                try {
-                    mServerSocket = mService.createLlcpServerSocket(mSap, SERVICE_NAME,
-                            MIU, 1, 1024);
-                    if (mServerSocket == null) {
-                        if (DBG) Log.d(TAG, "failed to create LLCP service socket");
-                        return;
-                    }
-                    if (DBG) Log.d(TAG, "created LLCP service socket");
-                    while (mRunning) {
-                        if (DBG) Log.d(TAG, "about to accept");
-                        LlcpSocket communicationSocket = mServerSocket.accept();
-                        if (DBG) Log.d(TAG, "accept returned " + communicationSocket);
-                        if (communicationSocket != null) {
-                            new ConnectionThread(communicationSocket).start();
-                        }
-                    }
-                    if (DBG) Log.d(TAG, "stop running");
-                } catch (LlcpException e) {
-                    Log.e(TAG, "llcp error", e);
-                } catch (IOException e) {
-                    Log.e(TAG, "IO error", e);
-                } finally {
-                    if (mServerSocket != null) {
-                        if (DBG) Log.d(TAG, "about to close");
-                        try {
-                            mServerSocket.close();
-                        } catch (IOException e) {
-                            // ignore
-                        }
-                        mServerSocket = null;
-                    }
-                }
-            }
-        }
+        public void onStarted() { }
 
-        public void shutdown() {
-            mRunning = false;
-            if (mServerSocket != null) {
+        @Override
+        public void onConnectionAccepted(LlcpSocket communicationSocket) {
+            ConnectionTask task = new ConnectionTask(communicationSocket);
+            if (!LlcpConnectionExecutor.getInstance().execute(task)) {
+                Log.w(TAG, "Too many connections, rejecting");
                 try {
-                    mServerSocket.close();
+                    communicationSocket.close();
                 } catch (IOException e) {
                     // ignore
                 }
-                mServerSocket = null;
             }
         }
+
+        @Override
+        public void onStopped() { }
     };
 
+    /**
+     * Registers this server's service with {@code host}, which then owns
+     * its lifecycle. Use either this or {@link #start()}, not both.
+     */
+    public void registerWith(LlcpServiceHost host) {
+        LlcpSocketTuner.Params params = LlcpSocketTuner.getInstance().getServerParams(MIU);
+        host.register(SERVICE_NAME, mSap, params.miu, params.rw, params.linearBufferLength,
+                mServiceHandler);
+    }
+
+    /** Starts the server on its own {@link LlcpServiceHost}. */
     public void start() {
         synchronized (this) {
-            if (DBG) Log.d(TAG, "start, thread = " + mServerThread);
-            if (mServerThread == null) {
-                if (DBG) Log.d(TAG, "starting new server thread");
-                mServerThread = new ServerThread();
-                mServerThread.start();
+            if (DBG) Log.d(TAG, "start, host = " + mServiceHost);
+            if (mServiceHost == null) {
+                if (DBG) Log.d(TAG, "starting new server host");
+                mServiceHost = new LlcpServiceHost(TAG);
+                registerWith(mServiceHost);
+                mServiceHost.start();
             }
         }
     }
 
     public void stop() {
+        LlcpServiceHost host;
         synchronized (this) {
-            if (DBG) Log.d(TAG, "stop, thread = " + mServerThread);
-            if (mServerThread != null) {
-                if (DBG) Log.d(TAG, "shuting down server thread");
-                mServerThread.shutdown();
-                mServerThread = null;
-            }
+            if (DBG) Log.d(TAG, "stop, host = " + mServiceHost);
+            host = mServiceHost;
+            mServiceHost = null;
+        }
+        if (host != null) {
+            if (DBG) Log.d(TAG, "shuting down server host");
+            host.stop(STOP_TIMEOUT_MS);
         }
     }
 }
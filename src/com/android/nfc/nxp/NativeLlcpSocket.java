@@ -64,6 +64,17 @@ public class NativeLlcpSocket implements DeviceHost.LlcpSocket {
         }
     }
 
+    private native boolean doSendRange(byte[] data, int offset, int length);
+    @Override
+    public void send(byte[] data, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (!doSendRange(data, offset, length)) {
+            throw new IOException();
+        }
+    }
+
     private native int doReceive(byte[] recvBuff);
     @Override
     public int receive(byte[] recvBuff) throws IOException {
@@ -82,6 +93,10 @@ public class NativeLlcpSocket implements DeviceHost.LlcpSocket {
     @Override
     public int getRemoteRw() { return doGetRemoteSocketRw(); }
 
+    private native int doGetRemoteSocketSap();
+    @Override
+    public int getRemoteSap() { return doGetRemoteSocketSap(); }
+
     @Override
     public int getLocalSap(){
         return mSap;
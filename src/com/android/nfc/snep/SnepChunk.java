@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.snep;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charsets;
+import java.util.Arrays;
+
+/**
+ * Records used to beam one large payload as a sequence of SNEP PUTs.
+ *
+ * <p>Each PUT carries a single chunk record:
+ * <pre>
+ *   transfer id (8) | total length (4) | offset (4) | mime length (1) | mime | data
+ * </pre>
+ * The receiver only accepts a chunk at the offset it has confirmed so far.
+ * A sender resuming after a link drop asks for that offset with a GET for a
+ * status record carrying the transfer id; the response is a status record
+ * with the transfer id and the confirmed offset.
+ */
+final class SnepChunk {
+    static final byte[] TYPE_CHUNK = "android.com:snep-chunk".getBytes(Charsets.US_ASCII);
+    static final byte[] TYPE_STATUS = "android.com:snep-chunk-status".getBytes(Charsets.US_ASCII);
+
+    static final int CHUNK_HEADER_LENGTH = 8 + 4 + 4 + 1;
+    static final int STATUS_LENGTH = 8 + 4;
+
+    final long mTransferId;
+    final int mTotalLength;
+    final int mOffset;
+    final String mMimeType;
+    final byte[] mPayload;
+    final int mDataOffset;
+
+    private SnepChunk(long transferId, int totalLength, int offset, String mimeType,
+            byte[] payload, int dataOffset) {
+        mTransferId = transferId;
+        mTotalLength = totalLength;
+        mOffset = offset;
+        mMimeType = mimeType;
+        mPayload = payload;
+        mDataOffset = dataOffset;
+    }
+
+    int getDataLength() {
+        return mPayload.length - mDataOffset;
+    }
+
+    static NdefMessage createChunk(long transferId, int totalLength, int offset,
+            byte[] mimeType, byte[] data, int dataLength) {
+        ByteBuffer payload = ByteBuffer.allocate(CHUNK_HEADER_LENGTH + mimeType.length +
+                dataLength);
+        payload.putLong(transferId);
+        payload.putInt(totalLength);
+        payload.putInt(offset);
+        payload.put((byte) mimeType.length);
+        payload.put(mimeType);
+        payload.put(data, 0, dataLength);
+        return wrap(TYPE_CHUNK, payload.array());
+    }
+
+    static NdefMessage createStatus(long transferId, int confirmedOffset) {
+        ByteBuffer payload = ByteBuffer.allocate(STATUS_LENGTH);
+        payload.putLong(transferId);
+        payload.putInt(confirmedOffset);
+        return wrap(TYPE_STATUS, payload.array());
+    }
+
+    private static NdefMessage wrap(byte[] type, byte[] payload) {
+        NdefRecord record = new NdefRecord(NdefRecord.TNF_EXTERNAL_TYPE, type, new byte[0],
+                payload);
+        return new NdefMessage(new NdefRecord[] { record });
+    }
+
+    /** Returns the record if {@code msg} is a single record of {@code type}, else null. */
+    private static NdefRecord unwrap(NdefMessage msg, byte[] type) {
+        if (msg == null) {
+            return null;
+        }
+        NdefRecord[] records = msg.getRecords();
+        if (records.length != 1 || records[0].getTnf() != NdefRecord.TNF_EXTERNAL_TYPE ||
+                !Arrays.equals(records[0].getType(), type)) {
+            return null;
+        }
+        return records[0];
+    }
+
+    static boolean isChunk(NdefMessage msg) {
+        return unwrap(msg, TYPE_CHUNK) != null;
+    }
+
+    /** Returns the chunk in {@code msg}, or null if it is not a well formed chunk. */
+    static SnepChunk parseChunk(NdefMessage msg) {
+        NdefRecord record = unwrap(msg, TYPE_CHUNK);
+        if (record == null) {
+            return null;
+        }
+        byte[] payload = record.getPayload();
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            long transferId = in.getLong();
+            int totalLength = in.getInt();
+            int offset = in.getInt();
+            byte[] mime = new byte[in.get() & 0xFF];
+            in.get(mime);
+            if (totalLength < 0 || offset < 0 || offset + in.remaining() > totalLength) {
+                return null;
+            }
+            return new SnepChunk(transferId, totalLength, offset,
+                    new String(mime, Charsets.US_ASCII), payload, in.position());
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns {transfer id, offset} from a status record, or null. The
+     * offset of a status request is ignored by the receiver.
+     */
+    static long[] parseStatus(NdefMessage msg) {
+        NdefRecord record = unwrap(msg, TYPE_STATUS);
+        if (record == null) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(record.getPayload());
+        if (in.remaining() < STATUS_LENGTH) {
+            return null;
+        }
+        return new long[] { in.getLong(), in.getInt() };
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.snep;
+
+import com.android.nfc.PayloadSpool;
+
+import android.nfc.NdefMessage;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles payloads beamed by {@link SnepChunkSender}.
+ *
+ * <p>Chunks are appended to a {@link PayloadSpool} per transfer. Partial
+ * transfers survive a link drop until {@link #clear()} is called, so a
+ * sender reconnecting within the debounce window can ask for the confirmed
+ * offset and resume from there. The last few completed transfers are
+ * remembered too, so a sender that lost the final response learns that
+ * the transfer is done instead of sending it again.
+ *
+ * <p>A completed payload is read back into memory and dispatched as one
+ * NDEF message, so transfers are limited to the per-message SNEP receive
+ * limit, and the callback may still refuse a payload it has no room for.
+ */
+public final class SnepChunkReceiver {
+    private static final String TAG = "SnepChunkReceiver";
+    private static final boolean DBG = false;
+
+    static final int MAX_PARTIAL_TRANSFERS = 2;
+    static final int MAX_COMPLETED_TRANSFERS = 4;
+    public static final int DEFAULT_MAX_LENGTH = SnepServer.DEFAULT_MAX_MESSAGE_LENGTH;
+
+    public interface Callback {
+        /**
+         * Called on the SNEP connection thread once a transfer is complete.
+         * @return false to refuse the payload; the last chunk is then
+         *     rejected and the transfer forgotten
+         */
+        boolean onTransferComplete(String mimeType, PayloadSpool payload);
+    }
+
+    static final class Transfer {
+        final long mTransferId;
+        final int mTotalLength;
+        final String mMimeType;
+        final PayloadSpool mSpool;
+
+        Transfer(long transferId, int totalLength, String mimeType, PayloadSpool spool) {
+            mTransferId = transferId;
+            mTotalLength = totalLength;
+            mMimeType = mimeType;
+            mSpool = spool;
+        }
+    }
+
+    final Callback mCallback;
+    final int mMaxLength;
+
+    // Protected by 'this'
+    final LinkedHashMap<Long, Transfer> mTransfers = new LinkedHashMap<Long, Transfer>();
+    final LinkedHashMap<Long, Integer> mCompletedLengths =
+            new LinkedHashMap<Long, Integer>(MAX_COMPLETED_TRANSFERS, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return size() > MAX_COMPLETED_TRANSFERS;
+        }
+    };
+    int mCompleted;
+    int mResumed;
+    int mOutOfOrder;
+    int mRefused;
+
+    public SnepChunkReceiver(Callback callback) {
+        this(callback, DEFAULT_MAX_LENGTH);
+    }
+
+    public SnepChunkReceiver(Callback callback, int maxLength) {
+        mCallback = callback;
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * Handles a PUT. Returns null if {@code msg} is not a chunk, in which
+     * case the caller should handle it as a regular NDEF push.
+     */
+    public SnepMessage doPut(NdefMessage msg) {
+        if (!SnepChunk.isChunk(msg)) {
+            return null;
+        }
+        SnepChunk chunk = SnepChunk.parseChunk(msg);
+        if (chunk == null || chunk.mTotalLength > mMaxLength) {
+            return SnepMessage.getMessage(SnepMessage.RESPONSE_BAD_REQUEST);
+        }
+
+        Transfer completed = null;
+        synchronized (this) {
+            Transfer transfer = mTransfers.get(chunk.mTransferId);
+            if (transfer == null) {
+                if (chunk.mOffset != 0 || mCompletedLengths.containsKey(chunk.mTransferId)) {
+                    mOutOfOrder++;
+                    return SnepMessage.getMessage(SnepMessage.RESPONSE_BAD_REQUEST);
+                }
+                try {
+                    transfer = new Transfer(chunk.mTransferId, chunk.mTotalLength,
+                            chunk.mMimeType, PayloadSpool.create());
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot spool chunked transfer", e);
+                    return SnepMessage.getMessage(SnepMessage.RESPONSE_REJECT);
+                }
+                evictOldest();
+                mTransfers.put(chunk.mTransferId, transfer);
+            }
+
+            if (chunk.mOffset != transfer.mSpool.length() ||
+                    chunk.mTotalLength != transfer.mTotalLength) {
+                // Sender will ask for the confirmed offset and resume from it
+                mOutOfOrder++;
+                return SnepMessage.getMessage(SnepMessage.RESPONSE_BAD_REQUEST);
+            }
+            try {
+                transfer.mSpool.write(chunk.mPayload, chunk.mDataOffset, chunk.getDataLength());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to spool chunk", e);
+                remove(transfer);
+                return SnepMessage.getMessage(SnepMessage.RESPONSE_REJECT);
+            }
+            if (DBG) Log.d(TAG, "transfer " + chunk.mTransferId + " at " +
+                    transfer.mSpool.length() + "/" + transfer.mTotalLength);
+
+            if (transfer.mSpool.length() == transfer.mTotalLength) {
+                mTransfers.remove(transfer.mTransferId);
+                mCompletedLengths.put(transfer.mTransferId, transfer.mTotalLength);
+                mCompleted++;
+                completed = transfer;
+            }
+        }
+
+        if (completed != null) {
+            boolean accepted;
+            try {
+                accepted = mCallback.onTransferComplete(completed.mMimeType, completed.mSpool);
+            } finally {
+                completed.mSpool.close();
+            }
+            if (!accepted) {
+                synchronized (this) {
+                    mCompletedLengths.remove(completed.mTransferId);
+                    mRefused++;
+                }
+                return SnepMessage.getMessage(SnepMessage.RESPONSE_REJECT);
+            }
+        }
+        return SnepMessage.getMessage(SnepMessage.RESPONSE_SUCCESS);
+    }
+
+    /**
+     * Handles a GET. Returns null if {@code msg} is not a status request;
+     * otherwise answers with the offset confirmed so far, which is the total
+     * length for a completed transfer and 0 for an unknown one.
+     */
+    public SnepMessage doGet(NdefMessage msg) {
+        long[] status = SnepChunk.parseStatus(msg);
+        if (status == null) {
+            return null;
+        }
+        long transferId = status[0];
+        int confirmed = 0;
+        synchronized (this) {
+            Transfer transfer = mTransfers.get(transferId);
+            if (transfer != null) {
+                confirmed = transfer.mSpool.length();
+                mResumed++;
+            } else if (mCompletedLengths.containsKey(transferId)) {
+                confirmed = mCompletedLengths.get(transferId);
+                mResumed++;
+            }
+        }
+        return SnepMessage.getSuccessResponse(SnepChunk.createStatus(transferId, confirmed));
+    }
+
+    /** Drops all partial transfers. Call once the peer is gone for good. */
+    public synchronized void clear() {
+        for (Transfer transfer : mTransfers.values()) {
+            transfer.mSpool.close();
+        }
+        mTransfers.clear();
+        mCompletedLengths.clear();
+    }
+
+    // Must be called with 'this' held
+    private void evictOldest() {
+        Iterator<Transfer> it = mTransfers.values().iterator();
+        while (mTransfers.size() >= MAX_PARTIAL_TRANSFERS && it.hasNext()) {
+            it.next().mSpool.close();
+            it.remove();
+        }
+    }
+
+    // Must be called with 'this' held
+    private void remove(Transfer transfer) {
+        mTransfers.remove(transfer.mTransferId);
+        transfer.mSpool.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "partial=" + mTransfers.size() + " completed=" + mCompleted + " resumed=" +
+                mResumed + " outOfOrder=" + mOutOfOrder + " refused=" + mRefused;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.snep;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charsets;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
+
+/**
+ * Beams a payload as a sequence of SNEP PUTs, one chunk each, that a
+ * {@link SnepChunkReceiver} reassembles.
+ *
+ * <p>The sender remembers the last offset the receiver confirmed. If the
+ * link drops mid-transfer, the next call to {@link #send} asks the receiver
+ * for its confirmed offset and continues from there instead of starting
+ * over. The receiver may be ahead of the sender, when it committed a chunk
+ * whose response was lost with the link.
+ *
+ * <p>Every chunk PUT and status GET runs as a deadline-bounded
+ * {@link SnepClient} operation, so a peer that stops answering fails the
+ * send instead of blocking it, and the caller can cancel the request in
+ * flight.
+ */
+public final class SnepChunkSender {
+    private static final String TAG = "SnepChunkSender";
+    private static final boolean DBG = false;
+
+    public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+
+    // Resumes allowed within one send() before giving up on the receiver
+    static final int MAX_RESUMES = 3;
+
+    private static final Random sRandom = new Random();
+
+    /** Told about each request of a transfer so it can be cancelled. */
+    public interface OperationTracker {
+        /** Called before {@code operation} runs. */
+        void onStarted(Future<SnepMessage> operation);
+
+        /** Called once {@code operation} has completed, failed or been cancelled. */
+        void onFinished(Future<SnepMessage> operation);
+    }
+
+    final ByteBuffer mPayload;
+    final int mTotalLength;
+    final String mMimeType;
+    final byte[] mMimeBytes;
+    final int mChunkSize;
+    final byte[] mChunk;
+
+    // Protected by 'this'
+    long mTransferId;
+    int mConfirmed;
+    boolean mComplete;
+    int mChunksSent;
+    int mResumes;
+
+    public SnepChunkSender(ByteBuffer payload, String mimeType) {
+        this(payload, mimeType, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param payload sent from its position to its limit; the sender reads
+     *     through its own view, so the buffer may be shared
+     */
+    public SnepChunkSender(ByteBuffer payload, String mimeType, int chunkSize) {
+        mPayload = payload.slice();
+        mTotalLength = mPayload.remaining();
+        mMimeType = mimeType;
+        mMimeBytes = mimeType.getBytes(Charsets.US_ASCII);
+        if (mMimeBytes.length > 255) {
+            throw new IllegalArgumentException("MIME type too long");
+        }
+        mChunkSize = chunkSize;
+        mChunk = new byte[chunkSize];
+        mTransferId = sRandom.nextLong();
+    }
+
+    public int getTotalLength() {
+        return mTotalLength;
+    }
+
+    public synchronized int getConfirmedOffset() {
+        return mConfirmed;
+    }
+
+    /** A message describing the transfer, for logging in place of the payload. */
+    public NdefMessage getSummary() {
+        return new NdefMessage(new NdefRecord[] { new NdefRecord(NdefRecord.TNF_MIME_MEDIA,
+                mMimeBytes, new byte[0], new byte[0]) });
+    }
+
+    /**
+     * Sends whatever the receiver has not confirmed yet over {@code client}.
+     * Blocks until the transfer is complete.
+     *
+     * @param timeoutMs deadline for each request, after which the session
+     *     is closed
+     * @param tracker told about each request, may be null
+     * @return false if the receiver does not support chunked transfers, in
+     *     which case nothing was delivered to it
+     * @throws IOException if the link fails, a request misses its deadline
+     *     or is cancelled; calling again resumes
+     */
+    public synchronized boolean send(SnepClient client, long timeoutMs,
+            OperationTracker tracker) throws IOException {
+        if (mComplete) {
+            restart();
+        }
+        // Always ask first: this picks up where a dropped link left off, and
+        // a receiver without chunk support fails here before any chunk is
+        // delivered to it as a regular push
+        if (!resume(client, timeoutMs, tracker)) {
+            if (mConfirmed > 0) {
+                throw new IOException("Receiver stopped answering chunk status");
+            }
+            return false;
+        }
+        int resumes = 0;
+
+        // An empty payload still takes one chunk to deliver
+        boolean sentAny = mConfirmed > 0;
+        while (mConfirmed < mTotalLength || !sentAny) {
+            int length = read(mConfirmed);
+            NdefMessage chunk = SnepChunk.createChunk(mTransferId, mTotalLength, mConfirmed,
+                    mMimeBytes, mChunk, length);
+            SnepMessage response = run(client.newPut(SnepMessage.getPutRequest(chunk),
+                    timeoutMs, null), tracker);
+            if (response.getField() == SnepMessage.RESPONSE_BAD_REQUEST) {
+                // Receiver is at a different offset, e.g. it dropped our transfer
+                if (++resumes > MAX_RESUMES || !resume(client, timeoutMs, tracker)) {
+                    throw new IOException("Receiver keeps refusing chunk at " + mConfirmed);
+                }
+                sentAny = mConfirmed > 0;
+                continue;
+            } else if (response.getField() != SnepMessage.RESPONSE_SUCCESS) {
+                throw new IOException("Chunk at " + mConfirmed + " refused: " +
+                        response.getField());
+            }
+            mConfirmed += length;
+            mChunksSent++;
+            sentAny = true;
+            if (DBG) Log.d(TAG, "confirmed " + mConfirmed + "/" + mTotalLength);
+        }
+        mComplete = true;
+        return true;
+    }
+
+    /**
+     * Asks the receiver for its confirmed offset and continues from it,
+     * even if that is past what this side saw confirmed. Does not count as
+     * a resume while nothing has been sent.
+     * @return false if the receiver gave no usable status
+     */
+    private boolean resume(SnepClient client, long timeoutMs, OperationTracker tracker)
+            throws IOException {
+        SnepMessage response = run(client.newGet(
+                SnepChunk.createStatus(mTransferId, mConfirmed), timeoutMs, null), tracker);
+        long[] status = (response.getField() == SnepMessage.RESPONSE_SUCCESS) ?
+                SnepChunk.parseStatus(response.getNdefMessage()) : null;
+        if (status == null || status[0] != mTransferId || status[1] < 0 ||
+                status[1] > mTotalLength) {
+            return false;
+        }
+        if (DBG) Log.d(TAG, "resuming at " + status[1] + ", had " + mConfirmed);
+        if (status[1] == 0 && mConfirmed > 0) {
+            // The receiver lost the transfer; start a fresh one
+            mTransferId = sRandom.nextLong();
+        }
+        if (mConfirmed > 0) {
+            mResumes++;
+        }
+        mConfirmed = (int) status[1];
+        return true;
+    }
+
+    /** Runs {@code operation} on this thread and returns its response. */
+    private static SnepMessage run(RunnableFuture<SnepMessage> operation,
+            OperationTracker tracker) throws IOException {
+        if (tracker != null) {
+            tracker.onStarted(operation);
+        }
+        try {
+            operation.run();
+            return operation.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        } catch (CancellationException e) {
+            throw new IOException("Chunked transfer cancelled");
+        } catch (InterruptedException e) {
+            operation.cancel(true);
+            throw new IOException("Chunked transfer interrupted");
+        } finally {
+            if (tracker != null) {
+                tracker.onFinished(operation);
+            }
+        }
+    }
+
+    private int read(int position) {
+        int length = Math.min(mChunkSize, mTotalLength - position);
+        ByteBuffer src = mPayload.duplicate();
+        src.position(position);
+        src.get(mChunk, 0, length);
+        return length;
+    }
+
+    /** True once every byte has been confirmed by the receiver. */
+    public synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    /** Starts the next {@link #send} from the beginning as a new transfer. */
+    public synchronized void restart() {
+        mTransferId = sRandom.nextLong();
+        mConfirmed = 0;
+        mComplete = false;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mMimeType + " " + mConfirmed + "/" + mTotalLength + " chunks=" + mChunksSent +
+                " resumes=" + mResumes;
+    }
+}
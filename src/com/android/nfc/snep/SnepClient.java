@@ -18,18 +18,29 @@ package com.android.nfc.snep;
 
 import com.android.nfc.DeviceHost.LlcpSocket;
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpSocketTuner;
+import com.android.nfc.LlcpTransferStats;
 import com.android.nfc.NfcService;
 
 import android.nfc.NdefMessage;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public final class SnepClient {
     private static final String TAG = "SnepClient";
     private static final boolean DBG = false;
     private static final int DEFAULT_ACCEPTABLE_LENGTH = 100*1024;
-    private static final int MIU = 128;
     SnepMessenger mMessenger = null;
     private final Object mTransmissionLock = new Object();
 
@@ -38,11 +49,33 @@ public final class SnepClient {
     private int  mState = DISCONNECTED;
     private final int mAcceptableLength;
     private final int mFragmentLength;
+    private boolean mCompressionEnabled = false;
+    private final LlcpTransferStats mLastPutStats = new LlcpTransferStats();
 
     private static final int DISCONNECTED = 0;
     private static final int CONNECTING = 1;
     private static final int CONNECTED = 2;
 
+    /**
+     * Completion of an asynchronous operation, called on the thread that
+     * ran it. Not called if the operation was cancelled.
+     */
+    public interface Callback {
+        public void onComplete(SnepMessage response);
+        public void onError(IOException e);
+    }
+
+    // Operations run on the caller's executor; only deadlines need a thread here
+    private static final ScheduledExecutorService sDeadlines =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SnepClient deadline");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     public SnepClient() {
         mServiceName = SnepServer.DEFAULT_SERVICE_NAME;
         mPort = SnepServer.DEFAULT_PORT;
@@ -71,7 +104,26 @@ public final class SnepClient {
         mFragmentLength = fragmentLength;
     }
 
+    /** For tests: a client already connected through {@code messenger}. */
+    SnepClient(SnepMessenger messenger) {
+        mServiceName = SnepServer.DEFAULT_SERVICE_NAME;
+        mPort = SnepServer.DEFAULT_PORT;
+        mAcceptableLength = DEFAULT_ACCEPTABLE_LENGTH;
+        mFragmentLength = -1;
+        mMessenger = messenger;
+        mState = CONNECTED;
+    }
+
     public void put(NdefMessage msg) throws IOException {
+        put(SnepMessage.getPutRequest(msg));
+    }
+
+    /**
+     * Sends a PUT request that was already built by the caller, for example
+     * to reuse its serialized form for logging.
+     * @return the server's response
+     */
+    public SnepMessage put(SnepMessage request) throws IOException {
         SnepMessenger messenger;
         synchronized (this) {
             if (mState != CONNECTED) {
@@ -82,15 +134,178 @@ public final class SnepClient {
 
         synchronized (mTransmissionLock) {
             try {
-                messenger.sendMessage(SnepMessage.getPutRequest(msg));
-                messenger.getMessage();
+                messenger.sendMessage(request);
+                SnepMessage response = messenger.getMessage();
+                // Goodput counts until the peer's response confirms the PUT
+                messenger.mSendStats.finish(request.getNdefLength());
+                synchronized (mLastPutStats) {
+                    mLastPutStats.copyFrom(messenger.mSendStats);
+                }
+                return response;
             } catch (SnepException e) {
                 throw new IOException(e);
             }
         }
     }
 
+    /** Fragments, remote window and goodput of the last completed PUT. */
+    public LlcpTransferStats getLastPutStats() {
+        LlcpTransferStats stats = new LlcpTransferStats();
+        synchronized (mLastPutStats) {
+            stats.copyFrom(mLastPutStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Sends a PUT request on {@code executor}. If the response has not
+     * arrived within {@code timeoutMs} of the operation starting, or the
+     * returned future is cancelled, the session is closed, which aborts the
+     * blocked send or receive.
+     * @param timeoutMs deadline for the whole exchange, or 0 for none
+     * @param callback notified on completion, may be null
+     */
+    public Future<SnepMessage> putAsync(SnepMessage request, long timeoutMs,
+            Executor executor, Callback callback) {
+        RunnableFuture<SnepMessage> operation = newPut(request, timeoutMs, callback);
+        executor.execute(operation);
+        return operation;
+    }
+
+    /**
+     * Like {@link #putAsync}, but returns the operation without running it,
+     * so a caller already on the right thread can publish the future for
+     * cancellation and then run it in place.
+     */
+    public RunnableFuture<SnepMessage> newPut(final SnepMessage request, long timeoutMs,
+            Callback callback) {
+        return new Operation(new Callable<SnepMessage>() {
+            @Override
+            public SnepMessage call() throws IOException {
+                return put(request);
+            }
+        }, timeoutMs, callback);
+    }
+
+    /** Like {@link #putAsync} for a GET request. */
+    public Future<SnepMessage> getAsync(NdefMessage msg, long timeoutMs,
+            Executor executor, Callback callback) {
+        return getAsync(msg, null, timeoutMs, executor, callback);
+    }
+
+    /** Like {@link #putAsync} for a GET request streamed to {@code sink}. */
+    public Future<SnepMessage> getAsync(NdefMessage msg, SnepResponseSink sink,
+            long timeoutMs, Executor executor, Callback callback) {
+        RunnableFuture<SnepMessage> operation = newGet(msg, sink, timeoutMs, callback);
+        executor.execute(operation);
+        return operation;
+    }
+
+    /** Like {@link #newPut} for a GET request. */
+    public RunnableFuture<SnepMessage> newGet(NdefMessage msg, long timeoutMs,
+            Callback callback) {
+        return newGet(msg, null, timeoutMs, callback);
+    }
+
+    /** Like {@link #newPut} for a GET request streamed to {@code sink}. */
+    public RunnableFuture<SnepMessage> newGet(final NdefMessage msg,
+            final SnepResponseSink sink, long timeoutMs, Callback callback) {
+        return new Operation(new Callable<SnepMessage>() {
+            @Override
+            public SnepMessage call() throws IOException {
+                return get(msg, sink);
+            }
+        }, timeoutMs, callback);
+    }
+
+    final class Operation extends FutureTask<SnepMessage> {
+        final Callback mCallback;
+        final long mTimeoutMs;
+        volatile ScheduledFuture<?> mDeadline;
+        volatile boolean mExpired;
+
+        Operation(Callable<SnepMessage> op, long timeoutMs, Callback callback) {
+            super(op);
+            mTimeoutMs = timeoutMs;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            // Time spent queued on the executor does not count against the deadline
+            if (mTimeoutMs > 0 && !isDone()) {
+                mDeadline = sDeadlines.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire();
+                    }
+                }, mTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+            super.run();
+        }
+
+        void expire() {
+            if (!isDone()) {
+                if (DBG) Log.d(TAG, "SNEP operation deadline exceeded");
+                mExpired = true;
+                close();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                // Interrupting does not unblock a native socket call, closing does
+                close();
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void set(SnepMessage response) {
+            super.set(response);
+            if (mCallback != null && !isCancelled()) {
+                mCallback.onComplete(response);
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            IOException e;
+            if (mExpired) {
+                e = new IOException("SNEP operation deadline exceeded", t);
+            } else if (t instanceof IOException) {
+                e = (IOException) t;
+            } else {
+                e = new IOException(t);
+            }
+            super.setException(e);
+            if (mCallback != null && !isCancelled()) {
+                mCallback.onError(e);
+            }
+        }
+
+        @Override
+        protected void done() {
+            ScheduledFuture<?> deadline = mDeadline;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+        }
+    }
+
     public SnepMessage get(NdefMessage msg) throws IOException {
+        return get(msg, null);
+    }
+
+    /**
+     * Sends a GET request and streams the response's NDEF payload to
+     * {@code sink} as it arrives, so it never has to fit in memory. The
+     * acceptable length still bounds what the server may send.
+     * @return the response, carrying only its header if {@code sink} is non-null
+     */
+    public SnepMessage get(NdefMessage msg, SnepResponseSink sink) throws IOException {
         SnepMessenger messenger;
         synchronized (this) {
             if (mState != CONNECTED) {
@@ -99,43 +314,106 @@ public final class SnepClient {
             messenger = mMessenger;
         }
 
+        // Our receive window only matters for what the peer sends, so it
+        // is tuned on GET responses
+        String service = messenger.mCompressed ? SnepServer.DEFLATE_SERVICE_NAME : mServiceName;
         synchronized (mTransmissionLock) {
+            messenger.sendMessage(SnepMessage.getGetRequest(mAcceptableLength, msg));
             try {
-                messenger.sendMessage(SnepMessage.getGetRequest(mAcceptableLength, msg));
-                return messenger.getMessage();
+                SnepMessage response = messenger.getMessage(sink);
+                LlcpSocketTuner.getInstance().recordReceive(service,
+                        messenger.mReceivedFragments, true);
+                return response;
             } catch (SnepException e) {
+                LlcpSocketTuner.getInstance().recordReceive(service, 0, false);
                 throw new IOException(e);
+            } catch (IOException e) {
+                LlcpSocketTuner.getInstance().recordReceive(service, 0, false);
+                throw e;
             }
         }
     }
 
+    /**
+     * Asks {@link #connect()} to try the compressed SNEP service first,
+     * falling back to plain SNEP if the peer does not offer it. Only
+     * applies to the default service.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        synchronized (this) {
+            mCompressionEnabled = enabled;
+        }
+    }
+
+    /** True if the current session uses the compressed service. */
+    public boolean isCompressed() {
+        synchronized (this) {
+            return mState == CONNECTED && mMessenger.mCompressed;
+        }
+    }
+
     public void connect() throws IOException {
+        boolean tryCompressed;
         synchronized (this) {
             if (mState != DISCONNECTED) {
                 throw new IOException("Socket already in use.");
             }
             mState = CONNECTING;
+            tryCompressed = mCompressionEnabled && mPort == SnepServer.DEFAULT_PORT;
         }
 
+        SnepMessenger messenger = null;
+        try {
+            if (tryCompressed) {
+                try {
+                    messenger = open(SnepServer.DEFLATE_SERVICE_NAME, -1, true);
+                } catch (IOException e) {
+                    if (DBG) Log.d(TAG, "compressed SNEP not available, using plain SNEP");
+                }
+            }
+            if (messenger == null) {
+                messenger = open(mServiceName, mPort, false);
+            }
+        } finally {
+            synchronized (this) {
+                if (messenger != null) {
+                    mMessenger = messenger;
+                    mState = CONNECTED;
+                } else {
+                    mState = DISCONNECTED;
+                }
+            }
+        }
+    }
+
+    private SnepMessenger open(String serviceName, int port, boolean compressed)
+            throws IOException {
         LlcpSocket socket = null;
-        SnepMessenger messenger;
         try {
             if (DBG) Log.d(TAG, "about to create socket");
             // Connect to the snep server on the remote side
-            socket = NfcService.getInstance().createLlcpSocket(0, MIU, 1, 1024);
+            NfcService service = NfcService.getInstance();
+            LlcpSocketTuner.Params params =
+                    LlcpSocketTuner.getInstance().getClientParams(serviceName);
+            socket = service.createLlcpSocket(0, params.miu, params.rw,
+                    params.linearBufferLength);
             if (socket == null) {
                 throw new IOException("Could not connect to socket.");
             }
-            if (mPort == -1) {
-                if (DBG) Log.d(TAG, "about to connect to service " + mServiceName);
-                socket.connectToService(mServiceName);
+            if (port == -1) {
+                if (DBG) Log.d(TAG, "about to connect to service " + serviceName);
+                service.connectLlcpSocketToService(socket, serviceName);
             } else {
-                if (DBG) Log.d(TAG, "about to connect to port " + mPort);
-                socket.connectToSap(mPort);
+                if (DBG) Log.d(TAG, "about to connect to port " + port);
+                socket.connectToSap(port);
             }
             int miu = socket.getRemoteMiu();
             int fragmentLength = (mFragmentLength == -1) ?  miu : Math.min(miu, mFragmentLength);
-            messenger = new SnepMessenger(true, socket, fragmentLength);
+            SnepMessenger messenger =
+                    new SnepMessenger(true, socket, fragmentLength, null, compressed);
+            // No response may be larger than a GET asks for
+            messenger.setMaxReceiveLength(mAcceptableLength);
+            return messenger;
         } catch (LlcpException e) {
             if (socket != null) {
                 try {
@@ -153,10 +431,11 @@ public final class SnepClient {
             }
             throw new IOException("Failed to connect to socket");
         }
+    }
 
+    public boolean isConnected() {
         synchronized (this) {
-            mMessenger = messenger;
-            mState = CONNECTED;
+            return mState == CONNECTED;
         }
     }
 
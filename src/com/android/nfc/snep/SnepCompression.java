@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.snep;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charsets;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload compression for SNEP connections made to
+ * {@link SnepServer#DEFLATE_SERVICE_NAME}.
+ *
+ * <p>On such a connection every non-empty information field starts with a
+ * method byte: {@link #METHOD_STORED} for the plain NDEF message or
+ * {@link #METHOD_DEFLATE} for a zlib stream of it. The sender stores
+ * payloads that are small, of a MIME type that is already compressed, or
+ * that do not shrink.
+ */
+public final class SnepCompression {
+    private static final String TAG = "SnepCompression";
+    private static final boolean DBG = false;
+
+    static final byte METHOD_STORED = 0;
+    static final byte METHOD_DEFLATE = 1;
+
+    // Below this the method byte and zlib header outweigh any saving
+    static final int MIN_COMPRESS_LENGTH = 64;
+
+    private static final String[] INCOMPRESSIBLE_PREFIXES = {
+        "image/", "audio/", "video/",
+        "application/zip", "application/gzip", "application/x-gzip",
+        "application/vnd.android.package-archive",
+    };
+
+    // Protected by SnepCompression.class
+    static int sCompressed;
+    static int sStored;
+    static long sBytesIn;
+    static long sBytesOut;
+
+    private SnepCompression() { }
+
+    /** Returns {@code msg} with its information field encoded for the wire. */
+    static SnepMessage compress(SnepMessage msg) {
+        if (msg.getNdefLength() == 0) {
+            return msg;
+        }
+        byte[] body = encode(msg.getNdefMessage(), msg.getNdefBytes());
+        if (msg.getField() == SnepMessage.REQUEST_GET) {
+            return new SnepMessage(msg.getVersion(), msg.getField(), body.length + 4,
+                    msg.getAcceptableLength(), null, body);
+        }
+        return new SnepMessage(msg.getVersion(), msg.getField(), body.length, 0, null, body);
+    }
+
+    /** Returns the information field to send for {@code ndefBytes}. */
+    static byte[] encode(NdefMessage ndef, byte[] ndefBytes) {
+        byte[] body = null;
+        if (ndefBytes.length >= MIN_COMPRESS_LENGTH && !isIncompressible(ndef)) {
+            body = deflate(ndefBytes);
+        }
+        if (body == null || body.length >= ndefBytes.length + 1) {
+            body = new byte[ndefBytes.length + 1];
+            body[0] = METHOD_STORED;
+            System.arraycopy(ndefBytes, 0, body, 1, ndefBytes.length);
+            synchronized (SnepCompression.class) {
+                sStored++;
+                sBytesIn += ndefBytes.length;
+                sBytesOut += body.length;
+            }
+        } else {
+            synchronized (SnepCompression.class) {
+                sCompressed++;
+                sBytesIn += ndefBytes.length;
+                sBytesOut += body.length;
+            }
+            if (DBG) Log.d(TAG, "compressed " + ndefBytes.length + " to " + body.length);
+        }
+        return body;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            out.write(METHOD_DEFLATE);
+            byte[] chunk = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+                if (out.size() > data.length) {
+                    // Not worth it, caller stores instead
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the NDEF bytes carried by {@code body}.
+     * @throws IOException if the body is malformed or inflates beyond
+     *     {@code maxLength}
+     */
+    static byte[] decode(byte[] body, int maxLength) throws IOException {
+        if (body.length == 0) {
+            throw new IOException("Missing compression method");
+        }
+        if (body[0] == METHOD_STORED) {
+            byte[] ndef = new byte[body.length - 1];
+            System.arraycopy(body, 1, ndef, 0, ndef.length);
+            return ndef;
+        } else if (body[0] != METHOD_DEFLATE) {
+            throw new IOException("Unknown compression method " + body[0]);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(body, 1, body.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 3);
+            byte[] chunk = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                out.write(chunk, 0, n);
+                if (out.size() > maxLength) {
+                    throw new IOException("Compressed payload exceeds " + maxLength + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static boolean isIncompressible(NdefMessage ndef) {
+        if (ndef == null) {
+            return false;
+        }
+        NdefRecord[] records = ndef.getRecords();
+        if (records.length == 0 || records[0].getTnf() != NdefRecord.TNF_MIME_MEDIA) {
+            return false;
+        }
+        String type = new String(records[0].getType(), Charsets.US_ASCII).toLowerCase(Locale.US);
+        for (String prefix : INCOMPRESSIBLE_PREFIXES) {
+            if (type.startsWith(prefix)) {
+                return !type.equals("image/svg+xml");
+            }
+        }
+        return false;
+    }
+
+    public static synchronized String getStats() {
+        String ratio = (sBytesOut > 0) ?
+                String.format("%.2f", (double) sBytesIn / sBytesOut) : "-";
+        return "compressed=" + sCompressed + " stored=" + sStored + " bytesIn=" + sBytesIn +
+                " bytesOut=" + sBytesOut + " ratio=" + ratio;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.snep;
+
+import android.net.Uri;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.util.Log;
+
+import java.nio.charset.Charsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves SNEP GET requests from NDEF messages published by local components.
+ *
+ * <p>Content is indexed by the first record of the request: its TNF and
+ * type, plus the payload for URI records, so a peer can ask for content by
+ * MIME type, external type or URI. Responses are kept pre-serialized in an
+ * LRU cache bounded by total size, so a repeated GET costs a hash lookup and
+ * a send rather than a fresh encode. Each cached response also keeps its
+ * compressed form for compressed connections, built when it is cached and
+ * counted against the size bound along with the plain form.
+ */
+public final class SnepContentStore {
+    private static final String TAG = "SnepContentStore";
+    private static final boolean DBG = false;
+
+    public static final int DEFAULT_CACHE_SIZE = 256 * 1024;
+
+    /** Index key derived from a single NDEF record */
+    static final class Key {
+        final short mTnf;
+        final byte[] mType;
+        final byte[] mUri;
+        final int mHashCode;
+
+        Key(NdefRecord record) {
+            mTnf = record.getTnf();
+            mType = record.getType();
+            if (mTnf == NdefRecord.TNF_WELL_KNOWN &&
+                    Arrays.equals(mType, NdefRecord.RTD_URI)) {
+                mUri = record.getPayload();
+            } else {
+                mUri = null;
+            }
+            mHashCode = 31 * (31 * mTnf + Arrays.hashCode(mType)) + Arrays.hashCode(mUri);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mTnf == other.mTnf && Arrays.equals(mType, other.mType) &&
+                    Arrays.equals(mUri, other.mUri);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    final int mMaxCacheSize;
+
+    // Protected by 'this'
+    final HashMap<Key, NdefMessage> mIndex = new HashMap<Key, NdefMessage>();
+    final LinkedHashMap<Key, SnepMessage> mResponses =
+            new LinkedHashMap<Key, SnepMessage>(16, 0.75f, true);
+    int mCacheSize;
+    int mHits;
+    int mMisses;
+    int mNotFound;
+    int mExcessData;
+
+    public SnepContentStore() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    public SnepContentStore(int maxCacheSize) {
+        mMaxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * Publishes {@code content} for GET requests whose first record has the
+     * same TNF and type (and payload, for URI records) as {@code key}.
+     * Replaces anything previously published under the same key.
+     */
+    public void publish(NdefRecord key, NdefMessage content) {
+        Key k = new Key(key);
+        synchronized (this) {
+            mIndex.put(k, content);
+            evictResponse(k);
+        }
+    }
+
+    /** Publishes {@code content} for GET requests carrying a URI record for {@code uri}. */
+    public void publishUri(Uri uri, NdefMessage content) {
+        publish(NdefRecord.createUri(uri), content);
+    }
+
+    /** Publishes {@code content} for GET requests for the MIME type {@code mimeType}. */
+    public void publishMime(String mimeType, NdefMessage content) {
+        publish(new NdefRecord(NdefRecord.TNF_MIME_MEDIA, mimeType.getBytes(Charsets.US_ASCII),
+                new byte[0], new byte[0]), content);
+    }
+
+    public void unpublish(NdefRecord key) {
+        Key k = new Key(key);
+        synchronized (this) {
+            mIndex.remove(k);
+            evictResponse(k);
+        }
+    }
+
+    public synchronized void clear() {
+        mIndex.clear();
+        mResponses.clear();
+        mCacheSize = 0;
+    }
+
+    /**
+     * Answers a GET request. Returns NOT_FOUND if nothing is published for
+     * the request, and EXCESS_DATA if the content is longer than
+     * {@code acceptableLength}.
+     */
+    public SnepMessage doGet(int acceptableLength, NdefMessage request) {
+        if (request == null || request.getRecords().length == 0) {
+            return SnepMessage.getMessage(SnepMessage.RESPONSE_BAD_REQUEST);
+        }
+        Key key = new Key(request.getRecords()[0]);
+
+        NdefMessage content;
+        synchronized (this) {
+            SnepMessage response = mResponses.get(key);
+            if (response != null) {
+                mHits++;
+                return checkLength(response, acceptableLength);
+            }
+            content = mIndex.get(key);
+            if (content == null) {
+                mNotFound++;
+                return SnepMessage.getMessage(SnepMessage.RESPONSE_NOT_FOUND);
+            }
+            mMisses++;
+        }
+
+        // Encode outside the lock, then cache unless it was unpublished meanwhile
+        SnepMessage response = SnepMessage.getSuccessResponse(content);
+        response.toByteArray();
+        response.getCompressedForm().toByteArray();
+        synchronized (this) {
+            if (mIndex.get(key) == content) {
+                cacheResponse(key, response);
+            }
+            return checkLength(response, acceptableLength);
+        }
+    }
+
+    // Must be called with 'this' held
+    private SnepMessage checkLength(SnepMessage response, int acceptableLength) {
+        if (response.getNdefLength() > acceptableLength) {
+            if (DBG) Log.d(TAG, "response of " + response.getNdefLength() +
+                    " bytes exceeds acceptable length " + acceptableLength);
+            mExcessData++;
+            return SnepMessage.getMessage(SnepMessage.RESPONSE_EXCESS_DATA);
+        }
+        return response;
+    }
+
+    // Must be called with 'this' held
+    private void cacheResponse(Key key, SnepMessage response) {
+        int size = getCachedSize(response);
+        if (size > mMaxCacheSize) {
+            return;
+        }
+        evictResponse(key);
+        mResponses.put(key, response);
+        mCacheSize += size;
+
+        Iterator<Map.Entry<Key, SnepMessage>> it = mResponses.entrySet().iterator();
+        while (mCacheSize > mMaxCacheSize && it.hasNext()) {
+            Map.Entry<Key, SnepMessage> eldest = it.next();
+            mCacheSize -= getCachedSize(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    // Must be called with 'this' held
+    private void evictResponse(Key key) {
+        SnepMessage old = mResponses.remove(key);
+        if (old != null) {
+            mCacheSize -= getCachedSize(old);
+        }
+    }
+
+    /** Bytes held for {@code response}, its compressed form included. */
+    static int getCachedSize(SnepMessage response) {
+        int size = response.toByteArray().length;
+        SnepMessage compressed = response.getCompressedForm();
+        if (compressed != response) {
+            size += compressed.toByteArray().length;
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "published=" + mIndex.size() + " cached=" + mResponses.size() + " (" +
+                mCacheSize + "/" + mMaxCacheSize + " bytes) hits=" + mHits + " misses=" +
+                mMisses + " notFound=" + mNotFound + " excessData=" + mExcessData;
+    }
+}
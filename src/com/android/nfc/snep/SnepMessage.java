@@ -19,9 +19,6 @@ package com.android.nfc.snep;
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public final class SnepMessage {
@@ -50,13 +47,22 @@ public final class SnepMessage {
     private final int mAcceptableLength;
     private final NdefMessage mNdefMessage;
 
+    /** Serialized NDEF payload, computed at most once. */
+    private byte[] mNdefBytes;
+    /** Complete wire image of this message, built on first use. */
+    private volatile byte[] mWireBytes;
+    /** Form sent on compressed connections, built on first use. */
+    private volatile SnepMessage mCompressedForm;
+
     public static SnepMessage getGetRequest(int acceptableLength, NdefMessage ndef) {
-        return new SnepMessage(VERSION, REQUEST_GET, 4 + ndef.toByteArray().length,
-                acceptableLength, ndef);
+        byte[] bytes = ndef.toByteArray();
+        return new SnepMessage(VERSION, REQUEST_GET, 4 + bytes.length, acceptableLength, ndef,
+                bytes);
     }
 
     public static SnepMessage getPutRequest(NdefMessage ndef) {
-        return new SnepMessage(VERSION, REQUEST_PUT, ndef.toByteArray().length, 0, ndef);
+        byte[] bytes = ndef.toByteArray();
+        return new SnepMessage(VERSION, REQUEST_PUT, bytes.length, 0, ndef, bytes);
     }
 
     public static SnepMessage getMessage(byte field) {
@@ -67,7 +73,8 @@ public final class SnepMessage {
         if (ndef == null) {
             return new SnepMessage(VERSION, RESPONSE_SUCCESS, 0, 0, null);
         } else {
-            return new SnepMessage(VERSION, RESPONSE_SUCCESS, ndef.toByteArray().length, 0, ndef);
+            byte[] bytes = ndef.toByteArray();
+            return new SnepMessage(VERSION, RESPONSE_SUCCESS, bytes.length, 0, ndef, bytes);
         }
     }
 
@@ -97,6 +104,7 @@ public final class SnepMessage {
             byte[] bytes = new byte[ndefLength];
             System.arraycopy(data, ndefOffset, bytes, 0, ndefLength);
             mNdefMessage = new NdefMessage(bytes);
+            mNdefBytes = bytes;
         } else {
             mNdefMessage = null;
         }
@@ -104,44 +112,90 @@ public final class SnepMessage {
 
     SnepMessage(byte version, byte field, int length, int acceptableLength,
             NdefMessage ndefMessage) {
+        this(version, field, length, acceptableLength, ndefMessage, null);
+    }
+
+    SnepMessage(byte version, byte field, int length, int acceptableLength,
+            NdefMessage ndefMessage, byte[] ndefBytes) {
         mVersion = version;
         mField = field;
         mLength = length;
         mAcceptableLength = acceptableLength;
         mNdefMessage = ndefMessage;
+        mNdefBytes = ndefBytes;
     }
 
-    public byte[] toByteArray() {
-        byte[] bytes;
-        if (mNdefMessage != null) {
-            bytes = mNdefMessage.toByteArray();
-        } else {
-            bytes = new byte[0];
+    synchronized byte[] getNdefBytes() {
+        if (mNdefBytes == null) {
+            if (mNdefMessage != null) {
+                mNdefBytes = mNdefMessage.toByteArray();
+            } else {
+                mNdefBytes = new byte[0];
+            }
         }
+        return mNdefBytes;
+    }
 
-        ByteArrayOutputStream buffer;
-        try {
-            if (mField == REQUEST_GET) {
-                buffer = new ByteArrayOutputStream(bytes.length + HEADER_LENGTH + 4);
-            } else {
-                buffer = new ByteArrayOutputStream(bytes.length + HEADER_LENGTH);
+    /**
+     * Returns the wire encoding of this message. The encoding is built once
+     * and cached; callers must not modify the returned array.
+     */
+    public byte[] toByteArray() {
+        byte[] wire = mWireBytes;
+        if (wire != null) {
+            return wire;
+        }
+        synchronized (this) {
+            if (mWireBytes == null) {
+                mWireBytes = encode();
             }
+            return mWireBytes;
+        }
+    }
 
-            DataOutputStream output = new DataOutputStream(buffer);
-            output.writeByte(mVersion);
-            output.writeByte(mField);
-            if (mField == REQUEST_GET) {
-                output.writeInt(bytes.length + 4);
-                output.writeInt(mAcceptableLength);
-            } else {
-                output.writeInt(bytes.length);
+    /**
+     * Returns this message with its information field encoded by
+     * {@link SnepCompression}. The encoding is built once and cached, so a
+     * response served repeatedly is only compressed the first time.
+     */
+    SnepMessage getCompressedForm() {
+        SnepMessage compressed = mCompressedForm;
+        if (compressed != null) {
+            return compressed;
+        }
+        synchronized (this) {
+            if (mCompressedForm == null) {
+                mCompressedForm = SnepCompression.compress(this);
             }
-            output.write(bytes);
-        } catch(IOException e) {
-            return null;
+            return mCompressedForm;
         }
+    }
+
+    private byte[] encode() {
+        byte[] bytes = getNdefBytes();
+        boolean isGet = (mField == REQUEST_GET);
+        int headerLength = isGet ? HEADER_LENGTH + 4 : HEADER_LENGTH;
+        byte[] wire = new byte[headerLength + bytes.length];
+
+        ByteBuffer header = ByteBuffer.wrap(wire, 0, headerLength);
+        header.put(mVersion);
+        header.put(mField);
+        if (isGet) {
+            header.putInt(bytes.length + 4);
+            header.putInt(mAcceptableLength);
+        } else {
+            header.putInt(bytes.length);
+        }
+        System.arraycopy(bytes, 0, wire, headerLength, bytes.length);
+        return wire;
+    }
 
-        return buffer.toByteArray();
+    /**
+     * Returns the length of the serialized NDEF payload, without building
+     * the wire image.
+     */
+    public int getNdefLength() {
+        return getNdefBytes().length;
     }
 
     public NdefMessage getNdefMessage() {
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.snep;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Incremental decoder for a single SNEP message.
+ *
+ * <p>Fragments are fed in as they are received. The 6 byte header (and the
+ * acceptable length field of a GET request) is parsed first, after which a
+ * buffer of exactly the declared NDEF length is allocated and every
+ * following fragment is written straight into it.
+ *
+ * <p>With a {@link SnepResponseSink} set, nothing is buffered: each
+ * fragment's payload is handed to the sink as it is fed, inflated first on
+ * compressed connections.
+ *
+ * <p>If a {@link SnepReceiveBudget} is given, the declared length is
+ * reserved against it before the buffer is allocated, and the decoder
+ * refuses the message when the reservation fails. A compressed payload
+ * reserves its inflated length as well.
+ */
+final class SnepMessageDecoder {
+    static final int HEADER_LENGTH = 6;
+    private static final int GET_HEADER_LENGTH = HEADER_LENGTH + 4;
+
+    private final byte[] mHeader = new byte[GET_HEADER_LENGTH];
+    private int mHeaderRead;
+    private int mHeaderLength = HEADER_LENGTH;
+
+    private byte mVersion;
+    private byte mField;
+    private int mLength;
+    private int mAcceptableLength = -1;
+
+    private byte[] mNdef;
+    private int mNdefLength;
+    private int mNdefRead;
+
+    private final SnepReceiveBudget mBudget;
+    private int mReserved;
+
+    // Largest declared length accepted, or 0 for no limit beyond the budget
+    private int mMaxLength;
+
+    // Largest inflated payload, or 0 if payloads are not compressed
+    private int mInflateLimit;
+
+    private SnepResponseSink mSink;
+    private int mMethod = -1;  // compression method of a streamed payload, once read
+    private Inflater mInflater;
+    private byte[] mInflateBuffer;
+    private int mDelivered;
+
+    SnepMessageDecoder() {
+        this(null);
+    }
+
+    SnepMessageDecoder(SnepReceiveBudget budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Refuses messages declaring more than {@code maxLength} bytes before
+     * anything is allocated. Pass 0 for no limit.
+     */
+    void setMaxLength(int maxLength) {
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * Expects the information field of every message to be encoded by
+     * {@link SnepCompression}, inflating to at most {@code maxLength} bytes.
+     */
+    void setInflateLimit(int maxLength) {
+        mInflateLimit = maxLength;
+    }
+
+    /**
+     * Streams the payload of the next message to {@code sink} instead of
+     * buffering it. Call after {@link #reset}; pass null to go back to
+     * buffering.
+     */
+    void setSink(SnepResponseSink sink) {
+        mSink = sink;
+    }
+
+    /** Prepares the decoder for the next message. */
+    public void reset() {
+        release();
+        mHeaderRead = 0;
+        mHeaderLength = HEADER_LENGTH;
+        mVersion = 0;
+        mField = 0;
+        mLength = 0;
+        mAcceptableLength = -1;
+        mNdef = null;
+        mNdefLength = 0;
+        mNdefRead = 0;
+        mSink = null;
+        mMethod = -1;
+        mDelivered = 0;
+    }
+
+    /**
+     * Consumes {@code length} bytes of {@code data} starting at {@code offset}.
+     *
+     * @throws IOException if the data overruns the declared message length
+     */
+    public void feed(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        if (mHeaderRead < mHeaderLength) {
+            offset = readHeader(data, offset, end);
+        }
+        if (offset == end || !isSupportedVersion()) {
+            // Payload of an unsupported version is dropped.
+            return;
+        }
+        if (mNdefRead + (end - offset) > mNdefLength) {
+            throw new IOException("Received more data than the declared SNEP length.");
+        }
+        if (mSink != null) {
+            deliver(data, offset, end - offset);
+            mNdefRead += end - offset;
+            if (mNdefRead == mNdefLength && mInflater != null && !mInflater.finished()) {
+                throw new IOException("Truncated compressed payload");
+            }
+            mSink.onProgress(mNdefRead, mNdefLength);
+            return;
+        }
+        System.arraycopy(data, offset, mNdef, mNdefRead, end - offset);
+        mNdefRead += end - offset;
+    }
+
+    private int readHeader(byte[] data, int offset, int end) throws IOException {
+        while (offset < end && mHeaderRead < mHeaderLength) {
+            mHeader[mHeaderRead++] = data[offset++];
+            if (mHeaderRead == HEADER_LENGTH) {
+                mVersion = mHeader[0];
+                mField = mHeader[1];
+                mLength = readInt(mHeader, 2);
+                if (mLength < 0) {
+                    throw new IOException("Invalid SNEP length " + mLength);
+                }
+                if (mField == SnepMessage.REQUEST_GET && isSupportedVersion()) {
+                    if (mLength < 4) {
+                        throw new IOException("GET request without acceptable length.");
+                    }
+                    mHeaderLength = GET_HEADER_LENGTH;
+                } else {
+                    allocateNdef(mLength);
+                }
+            } else if (mHeaderRead == GET_HEADER_LENGTH) {
+                mAcceptableLength = readInt(mHeader, HEADER_LENGTH);
+                allocateNdef(mLength - 4);
+            }
+        }
+        return offset;
+    }
+
+    private void allocateNdef(int length) throws IOException {
+        if (!isSupportedVersion()) {
+            // Unsupported version; the rest of the message is never read.
+            mNdef = null;
+            mNdefLength = 0;
+            return;
+        }
+        if (mMaxLength > 0 && length > mMaxLength) {
+            throw new IOException("SNEP message of " + length + " bytes exceeds the " +
+                    mMaxLength + " byte limit.");
+        }
+        if (mSink != null) {
+            // Nothing is held, so the budget does not apply
+            mNdefLength = length;
+            mSink.onResponseStarted(mField, length);
+            return;
+        }
+        if (mBudget != null) {
+            if (!mBudget.reserve(length)) {
+                throw new IOException("SNEP message of " + length +
+                        " bytes exceeds the receive budget.");
+            }
+            mReserved = length;
+        }
+        mNdefLength = length;
+        mNdef = new byte[length];
+    }
+
+    private void deliver(byte[] data, int offset, int length) throws IOException {
+        if (mInflateLimit <= 0) {
+            mSink.onData(ByteBuffer.wrap(data, offset, length));
+            return;
+        }
+        if (mMethod < 0) {
+            mMethod = data[offset++];
+            length--;
+            if (mMethod == SnepCompression.METHOD_DEFLATE) {
+                mInflater = new Inflater();
+                mInflateBuffer = new byte[1024];
+            } else if (mMethod != SnepCompression.METHOD_STORED) {
+                throw new IOException("Unknown compression method " + mMethod);
+            }
+        }
+        if (length == 0) {
+            return;
+        }
+        if (mMethod == SnepCompression.METHOD_STORED) {
+            mSink.onData(ByteBuffer.wrap(data, offset, length));
+            return;
+        }
+        mInflater.setInput(data, offset, length);
+        try {
+            int n;
+            while ((n = mInflater.inflate(mInflateBuffer)) > 0) {
+                mDelivered += n;
+                if (mDelivered > mInflateLimit) {
+                    throw new IOException("Compressed payload exceeds " + mInflateLimit +
+                            " bytes");
+                }
+                mSink.onData(ByteBuffer.wrap(mInflateBuffer, 0, n));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+    }
+
+    /** Returns any bytes reserved against the receive budget. */
+    public void release() {
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+            mInflateBuffer = null;
+        }
+        if (mReserved > 0) {
+            mBudget.release(mReserved);
+            mReserved = 0;
+        }
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) |
+                ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+
+    /** True once the base 6 byte header has been read. */
+    public boolean isHeaderComplete() {
+        return mHeaderRead >= HEADER_LENGTH;
+    }
+
+    public boolean isSupportedVersion() {
+        return ((mVersion & 0xF0) >> 4) == SnepMessage.VERSION_MAJOR;
+    }
+
+    public boolean isComplete() {
+        if (!isHeaderComplete()) {
+            return false;
+        }
+        if (!isSupportedVersion()) {
+            return true;
+        }
+        return mHeaderRead == mHeaderLength && mNdefRead == mNdefLength;
+    }
+
+    public byte getVersion() {
+        return mVersion;
+    }
+
+    public byte getField() {
+        return mField;
+    }
+
+    /** The length field from the header, including the acceptable length of a GET. */
+    public int getLength() {
+        return mLength;
+    }
+
+    public SnepMessage getMessage() throws FormatException, IOException {
+        if (!isSupportedVersion()) {
+            // Invalid protocol version; treat message as complete.
+            return new SnepMessage(mVersion, mField, 0, 0, null);
+        }
+        if (mNdefLength == 0 || mSink != null) {
+            return new SnepMessage(mVersion, mField, mLength, mAcceptableLength, null, null);
+        }
+        byte[] bytes = mNdef;
+        if (mInflateLimit > 0) {
+            bytes = SnepCompression.decode(bytes, mInflateLimit);
+            // The inflated copy is held alongside the compressed one
+            if (mBudget != null && bytes.length > 0) {
+                if (!mBudget.reserve(bytes.length)) {
+                    throw new IOException("Inflated SNEP message of " + bytes.length +
+                            " bytes exceeds the receive budget.");
+                }
+                mReserved += bytes.length;
+            }
+            if (bytes.length == 0) {
+                return new SnepMessage(mVersion, mField, mLength, mAcceptableLength, null, null);
+            }
+        }
+        NdefMessage ndef = new NdefMessage(bytes);
+        return new SnepMessage(mVersion, mField, mLength, mAcceptableLength, ndef, bytes);
+    }
+}
@@ -17,31 +17,96 @@
 package com.android.nfc.snep;
 
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpBufferPool;
+import com.android.nfc.LlcpFragmentWriter;
+import com.android.nfc.LlcpTransferStats;
 
 import android.nfc.FormatException;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.Arrays;
 
 public class SnepMessenger {
     private static final String TAG = "SnepMessager";
     private static final boolean DBG = false;
     private static final int HEADER_LENGTH = 6;
+
+    // Control frames carry no payload, so their encoding never changes
+    private static final byte[] REQUEST_CONTINUE_FRAME =
+            SnepMessage.getMessage(SnepMessage.REQUEST_CONTINUE).toByteArray();
+    private static final byte[] REQUEST_REJECT_FRAME =
+            SnepMessage.getMessage(SnepMessage.REQUEST_REJECT).toByteArray();
+    private static final byte[] RESPONSE_CONTINUE_FRAME =
+            SnepMessage.getMessage(SnepMessage.RESPONSE_CONTINUE).toByteArray();
+    private static final byte[] RESPONSE_REJECT_FRAME =
+            SnepMessage.getMessage(SnepMessage.RESPONSE_REJECT).toByteArray();
+
     final LlcpSocket mSocket;
     final int mFragmentLength;
     final boolean mIsClient;
+    final SnepReceiveBudget mReceiveBudget;
+    final LlcpBufferPool mBufferPool;
+    final SnepMessageDecoder mDecoder;
+    final byte[] mContinueFrame;
+    final byte[] mRejectFrame;
+    final boolean mCompressed;
+    /** Fragments and timing of the last message sent */
+    final LlcpTransferStats mSendStats = new LlcpTransferStats();
+    /** Fragments the last message received took */
+    int mReceivedFragments;
 
     public SnepMessenger(boolean isClient, LlcpSocket socket, int fragmentLength) {
+        this(isClient, socket, fragmentLength, null);
+    }
+
+    /**
+     * @param receiveBudget if non-null, inbound messages whose declared length
+     *     does not fit are rejected before their payload is buffered
+     */
+    public SnepMessenger(boolean isClient, LlcpSocket socket, int fragmentLength,
+            SnepReceiveBudget receiveBudget) {
+        this(isClient, socket, fragmentLength, receiveBudget, false);
+    }
+
+    /**
+     * @param compressed true on connections to {@link SnepServer#DEFLATE_SERVICE_NAME},
+     *     where information fields are encoded by {@link SnepCompression}
+     */
+    public SnepMessenger(boolean isClient, LlcpSocket socket, int fragmentLength,
+            SnepReceiveBudget receiveBudget, boolean compressed) {
         mSocket = socket;
         mFragmentLength = fragmentLength;
         mIsClient = isClient;
+        mReceiveBudget = receiveBudget;
+        mBufferPool = LlcpBufferPool.getLinkPool();
+        mDecoder = new SnepMessageDecoder(receiveBudget);
+        mCompressed = compressed;
+        if (isClient && receiveBudget == null) {
+            // A response must never make the client allocate what the peer claims
+            mDecoder.setMaxLength(SnepServer.DEFAULT_MAX_MESSAGE_LENGTH);
+        }
+        if (compressed) {
+            mDecoder.setInflateLimit((receiveBudget != null) ?
+                    receiveBudget.getConnectionLimit() : SnepServer.DEFAULT_MAX_MESSAGE_LENGTH);
+        }
+        if (isClient) {
+            mContinueFrame = REQUEST_CONTINUE_FRAME;
+            mRejectFrame = REQUEST_REJECT_FRAME;
+        } else {
+            mContinueFrame = RESPONSE_CONTINUE_FRAME;
+            mRejectFrame = RESPONSE_REJECT_FRAME;
+        }
+    }
+
+    /** Refuses inbound messages declaring more than {@code maxLength} bytes. */
+    void setMaxReceiveLength(int maxLength) {
+        mDecoder.setMaxLength(maxLength);
     }
 
     public void sendMessage(SnepMessage msg) throws IOException {
+        if (mCompressed) {
+            msg = msg.getCompressedForm();
+        }
         byte[] buffer = msg.toByteArray();
         byte remoteContinue;
         if (mIsClient) {
@@ -52,122 +117,112 @@ public class SnepMessenger {
         if (DBG) Log.d(TAG, "about to send a " + buffer.length + " byte message");
 
         // Send first fragment
-        int length = Math.min(buffer.length, mFragmentLength);
-        byte[] tmpBuffer = Arrays.copyOfRange(buffer, 0, length);
-        if (DBG) Log.d(TAG, "about to send a " + length + " byte fragment");
-        mSocket.send(tmpBuffer);
+        mSendStats.start(mSocket.getRemoteRw(), mFragmentLength);
+        int offset = LlcpFragmentWriter.writeFirst(mSocket, buffer, mFragmentLength, mSendStats);
 
-        if (length == buffer.length) {
+        if (offset == buffer.length) {
             return;
         }
 
         // Look for Continue or Reject from peer.
-        int offset = length;
-        byte[] responseBytes = new byte[HEADER_LENGTH];
-        mSocket.receive(responseBytes);
-        SnepMessage snepResponse;
+        byte[] responseBytes = mBufferPool.acquire(mFragmentLength);
+        byte responseField;
         try {
-            snepResponse = SnepMessage.fromByteArray(responseBytes);
-        } catch (FormatException e) {
-            throw new IOException("Invalid SNEP message", e);
+            int size = mSocket.receive(responseBytes);
+            if (size < HEADER_LENGTH) {
+                throw new IOException("Invalid SNEP message");
+            }
+            responseField = responseBytes[1];
+        } finally {
+            mBufferPool.release(responseBytes);
         }
 
-        if (DBG) Log.d(TAG, "Got response from first fragment: " + snepResponse.getField());
-        if (snepResponse.getField() != remoteContinue) {
-            throw new IOException("Invalid response from server (" +
-                    snepResponse.getField() + ")");
+        if (DBG) Log.d(TAG, "Got response from first fragment: " + responseField);
+        if (responseField != remoteContinue) {
+            throw new IOException("Invalid response from server (" + responseField + ")");
         }
 
         // Send remaining fragments.
-        while (offset < buffer.length) {
-            length = Math.min(buffer.length - offset, mFragmentLength);
-            tmpBuffer = Arrays.copyOfRange(buffer, offset, offset + length);
-            if (DBG) Log.d(TAG, "about to send a " + length + " byte fragment");
-            mSocket.send(tmpBuffer);
-            offset += length;
-        }
+        LlcpFragmentWriter.write(mSocket, buffer, offset, buffer.length, mFragmentLength,
+                mSendStats);
     }
 
     public SnepMessage getMessage() throws IOException, SnepException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(mFragmentLength);
-        byte[] partial = new byte[mFragmentLength];
-        int size;
-        int requestSize = 0;
-        int readSize = 0;
-        byte requestVersion = 0;
-        boolean doneReading = false;
-        byte fieldContinue;
-        byte fieldReject;
-        if (mIsClient) {
-            fieldContinue = SnepMessage.REQUEST_CONTINUE;
-            fieldReject = SnepMessage.REQUEST_REJECT;
-        } else {
-            fieldContinue = SnepMessage.RESPONSE_CONTINUE;
-            fieldReject = SnepMessage.RESPONSE_REJECT;
+        return getMessage(null);
+    }
+
+    /**
+     * Receives the next message, passing its NDEF payload to {@code sink} as
+     * fragments arrive if it is non-null. The returned message then carries
+     * only the header.
+     */
+    public SnepMessage getMessage(SnepResponseSink sink) throws IOException, SnepException {
+        SnepMessageDecoder decoder = mDecoder;
+        byte[] partial = mBufferPool.acquire(mFragmentLength);
+        decoder.reset();
+        decoder.setSink(sink);
+        try {
+            return receiveMessage(decoder, partial);
+        } finally {
+            decoder.release();
+            mBufferPool.release(partial);
         }
+    }
+
+    private SnepMessage receiveMessage(SnepMessageDecoder decoder, byte[] partial)
+            throws IOException, SnepException {
+        int size;
 
         size = mSocket.receive(partial);
         if (DBG) Log.d(TAG, "read " + size + " bytes");
         if (size < 0) {
             try {
-                mSocket.send(SnepMessage.getMessage(fieldReject).toByteArray());
+                mSocket.send(mRejectFrame);
             } catch (IOException e) {
                 // Ignore
             }
             throw new IOException("Error reading SNEP message.");
         } else if (size < HEADER_LENGTH) {
             try {
-                mSocket.send(SnepMessage.getMessage(fieldReject).toByteArray());
+                mSocket.send(mRejectFrame);
             } catch (IOException e) {
                 // Ignore
             }
             throw new IOException("Invalid fragment from sender.");
-        } else {
-            readSize = size - HEADER_LENGTH;
-            buffer.write(partial, 0, size);
         }
+        mReceivedFragments = 1;
 
-        DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(partial));
-        requestVersion = dataIn.readByte();
-        byte requestField = dataIn.readByte();
-        requestSize = dataIn.readInt();
-
-        if (DBG) Log.d(TAG, "read " + readSize + " of " + requestSize);
-
-        if (((requestVersion & 0xF0) >> 4) != SnepMessage.VERSION_MAJOR) {
-            // Invalid protocol version; treat message as complete.
-            return new SnepMessage(requestVersion, requestField, 0, 0, null);
+        try {
+            decoder.feed(partial, 0, size);
+        } catch (IOException e) {
+            try {
+                mSocket.send(mRejectFrame);
+            } catch (IOException e2) {
+                // Ignore
+            }
+            throw e;
         }
 
-        if (requestSize > readSize) {
+        if (DBG) Log.d(TAG, "read " + (size - HEADER_LENGTH) + " of " + decoder.getLength());
+
+        if (!decoder.isComplete()) {
             if (DBG) Log.d(TAG, "requesting continuation");
-            mSocket.send(SnepMessage.getMessage(fieldContinue).toByteArray());
-        } else {
-            doneReading = true;
+            mSocket.send(mContinueFrame);
         }
 
-        // Remaining fragments
-        while (!doneReading) {
+        // Remaining fragments are written straight into the decoder's buffer
+        while (!decoder.isComplete()) {
             try {
                 size = mSocket.receive(partial);
                 if (DBG) Log.d(TAG, "read " + size + " bytes");
                 if (size < 0) {
-                    try {
-                        mSocket.send(SnepMessage.getMessage(fieldReject).toByteArray());
-                    } catch (IOException e) {
-                        // Ignore
-                    }
                     throw new IOException();
-                } else {
-                    readSize += size;
-                    buffer.write(partial, 0, size);
-                    if (readSize == requestSize) {
-                        doneReading = true;
-                    }
                 }
+                mReceivedFragments++;
+                decoder.feed(partial, 0, size);
             } catch (IOException e) {
                 try {
-                    mSocket.send(SnepMessage.getMessage(fieldReject).toByteArray());
+                    mSocket.send(mRejectFrame);
                 } catch (IOException e2) {
                     // Ignore
                 }
@@ -175,9 +230,9 @@ public class SnepMessenger {
             }
         }
 
-        // Build NDEF message set from the stream
+        // Build NDEF message set from the received bytes
         try {
-            return SnepMessage.fromByteArray(buffer.toByteArray());
+            return decoder.getMessage();
         } catch (FormatException e) {
             Log.e(TAG, "Badly formatted NDEF message, ignoring", e);
             throw new SnepException(e);
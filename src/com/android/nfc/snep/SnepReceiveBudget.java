@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.snep;
+
+/**
+ * Memory budget for buffering inbound SNEP messages.
+ *
+ * <p>A message is admitted only if its declared length fits the
+ * per-connection limit and the bytes already reserved by other connections
+ * leave room for it under the global limit. The check is made on the header,
+ * before any payload is buffered.
+ */
+public final class SnepReceiveBudget {
+    private final int mConnectionLimit;
+    private final int mGlobalLimit;
+
+    // Protected by 'this'
+    private long mReserved;
+    private int mRejectedConnectionLimit;
+    private int mRejectedGlobalLimit;
+
+    public SnepReceiveBudget(int connectionLimit, int globalLimit) {
+        if (connectionLimit <= 0 || globalLimit < connectionLimit) {
+            throw new IllegalArgumentException("Invalid limits " + connectionLimit + "/" +
+                    globalLimit);
+        }
+        mConnectionLimit = connectionLimit;
+        mGlobalLimit = globalLimit;
+    }
+
+    /**
+     * Reserves {@code length} bytes for a single inbound message.
+     * @return false if the message must be rejected
+     */
+    public synchronized boolean reserve(int length) {
+        if (length > mConnectionLimit) {
+            mRejectedConnectionLimit++;
+            return false;
+        }
+        if (mReserved + length > mGlobalLimit) {
+            mRejectedGlobalLimit++;
+            return false;
+        }
+        mReserved += length;
+        return true;
+    }
+
+    public synchronized void release(int length) {
+        mReserved -= length;
+    }
+
+    public int getConnectionLimit() {
+        return mConnectionLimit;
+    }
+
+    public int getGlobalLimit() {
+        return mGlobalLimit;
+    }
+
+    public synchronized long getReserved() {
+        return mReserved;
+    }
+
+    /** Messages rejected because they alone exceeded the per-connection limit. */
+    public synchronized int getRejectedConnectionLimit() {
+        return mRejectedConnectionLimit;
+    }
+
+    /** Messages rejected because the global limit was already in use. */
+    public synchronized int getRejectedGlobalLimit() {
+        return mRejectedGlobalLimit;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "reserved=" + mReserved + "/" + mGlobalLimit +
+                " connectionLimit=" + mConnectionLimit +
+                " rejectedConnectionLimit=" + mRejectedConnectionLimit +
+                " rejectedGlobalLimit=" + mRejectedGlobalLimit;
+    }
+}
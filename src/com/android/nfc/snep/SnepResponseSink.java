@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.snep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the information field of a SNEP response as its fragments
+ * arrive, instead of it being collected into an {@link android.nfc.NdefMessage}.
+ * All methods are called on the thread reading the socket.
+ */
+public interface SnepResponseSink {
+    /**
+     * Called once the response header has been read.
+     * @param field the response code, such as {@link SnepMessage#RESPONSE_SUCCESS}
+     * @param length length of the information field on the wire
+     */
+    public void onResponseStarted(byte field, int length);
+
+    /**
+     * Called with the next bytes of the NDEF message. The buffer is only
+     * valid until this method returns. Throwing aborts the exchange.
+     */
+    public void onData(ByteBuffer data) throws IOException;
+
+    /** Called after each fragment with the information field bytes read so far. */
+    public void onProgress(int received, int total);
+}
@@ -16,10 +16,10 @@
 
 package com.android.nfc.snep;
 
-import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
-import com.android.nfc.LlcpException;
-import com.android.nfc.NfcService;
+import com.android.nfc.LlcpConnectionExecutor;
+import com.android.nfc.LlcpServiceHost;
+import com.android.nfc.LlcpSocketTuner;
 
 import android.nfc.NdefMessage;
 import android.nfc.NfcAdapter;
@@ -40,15 +40,36 @@ public final class SnepServer {
 
     public static final String DEFAULT_SERVICE_NAME = "urn:nfc:sn:snep";
 
+    /**
+     * Private service, registered next to the default one, that speaks SNEP
+     * with compressed information fields (see {@link SnepCompression}).
+     */
+    public static final String DEFLATE_SERVICE_NAME = "com.android.snep.deflate";
+    // Clients find the service by name; 0x10 is NPP, 0x11 the validation server
+    public static final int DEFLATE_SAP = 0x12;
+
+    /** Largest inbound message a single connection may buffer. */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 512 * 1024;
+    /** Largest total of inbound messages buffered across all connections. */
+    public static final int DEFAULT_MAX_TOTAL_LENGTH = 1024 * 1024;
+
     final Callback mCallback;
     final String mServiceName;
     final int mServiceSap;
+    final int mDeflateSap;
     final int mFragmentLength;
 
-    /** Protected by 'this', null when stopped, non-null when running */
-    ServerThread mServerThread = null;
+    static final int STOP_TIMEOUT_MS = 500;
+
+    /** Protected by 'this', only used when started with {@link #start()} */
+    LlcpServiceHost mServiceHost = null;
+    /** Protected by 'this' */
     boolean mServerRunning = false;
 
+    /** Protected by 'this' */
+    SnepReceiveBudget mReceiveBudget = new SnepReceiveBudget(DEFAULT_MAX_MESSAGE_LENGTH,
+            DEFAULT_MAX_TOTAL_LENGTH);
+
     public interface Callback {
         public SnepMessage doPut(NdefMessage msg);
         public SnepMessage doGet(int acceptableLength, NdefMessage msg);
@@ -58,6 +79,7 @@ public final class SnepServer {
         mCallback = callback;
         mServiceName = DEFAULT_SERVICE_NAME;
         mServiceSap = DEFAULT_PORT;
+        mDeflateSap = DEFLATE_SAP;
         mFragmentLength = -1;
     }
 
@@ -65,6 +87,7 @@ public final class SnepServer {
         mCallback = callback;
         mServiceName = serviceName;
         mServiceSap = serviceSap;
+        mDeflateSap = -1;
         mFragmentLength = -1;
     }
 
@@ -72,18 +95,22 @@ public final class SnepServer {
         mCallback = callback;
         mServiceName = serviceName;
         mServiceSap = serviceSap;
+        mDeflateSap = -1;
         mFragmentLength = fragmentLength;
     }
 
-    /** Connection class, used to handle incoming connections */
-    private class ConnectionThread extends Thread {
+    /**
+     * Connection class, used to handle incoming connections. Runs on the
+     * shared {@link LlcpConnectionExecutor}.
+     */
+    private class ConnectionTask implements Runnable {
         private final LlcpSocket mSock;
         private final SnepMessenger mMessager;
 
-        ConnectionThread(LlcpSocket socket, int fragmentLength) {
-            super(TAG);
+        ConnectionTask(LlcpSocket socket, int fragmentLength, SnepReceiveBudget budget,
+                boolean compressed) {
             mSock = socket;
-            mMessager = new SnepMessenger(false, socket, fragmentLength);
+            mMessager = new SnepMessenger(false, socket, fragmentLength, budget, compressed);
         }
 
         @Override
@@ -151,119 +178,110 @@ public final class SnepServer {
         return true;
     }
 
-    /** Server class, used to listen for incoming connection request */
-    class ServerThread extends Thread {
-        private boolean mThreadRunning = true;
-        LlcpServerSocket mServerSocket;
+    /** Hands connections accepted on the service socket to the connection pool */
+    final LlcpServiceHost.Handler mServiceHandler = new ServiceHandler(false);
+
+    /** Same as mServiceHandler, for the compressed service */
+    final LlcpServiceHost.Handler mDeflateServiceHandler = new ServiceHandler(true);
+
+    final class ServiceHandler implements LlcpServiceHost.Handler {
+        final boolean mCompressed;
+
+        ServiceHandler(boolean compressed) {
+            mCompressed = compressed;
+        }
 
         @Override
-        public void run() {
-            boolean threadRunning;
+        public void onStarted() {
             synchronized (SnepServer.this) {
-                threadRunning = mThreadRunning;
+                mServerRunning = true;
             }
+        }
 
-            while (threadRunning) {
-                if (DBG) Log.d(TAG, "about create LLCP service socket");
+        @Override
+        public void onConnectionAccepted(LlcpSocket communicationSocket) {
+            int miu = communicationSocket.getRemoteMiu();
+            int fragmentLength = (mFragmentLength == -1) ?
+                    miu : Math.min(miu, mFragmentLength);
+            SnepReceiveBudget budget;
+            synchronized (SnepServer.this) {
+                budget = mReceiveBudget;
+            }
+            ConnectionTask task = new ConnectionTask(communicationSocket, fragmentLength,
+                    budget, mCompressed);
+            if (!LlcpConnectionExecutor.getInstance().execute(task)) {
+                Log.w(TAG, "Too many connections, rejecting");
                 try {
-                    synchronized (SnepServer.this) {
-                        mServerSocket = NfcService.getInstance().createLlcpServerSocket(mServiceSap,
-                                mServiceName, MIU, 1, 1024);
-                    }
-                    if (mServerSocket == null) {
-                        if (DBG) Log.d(TAG, "failed to create LLCP service socket");
-                        return;
-                    }
-                    if (DBG) Log.d(TAG, "created LLCP service socket");
-                    synchronized (SnepServer.this) {
-                        threadRunning = mThreadRunning;
-                    }
-
-                    while (threadRunning) {
-                        LlcpServerSocket serverSocket;
-                        synchronized (SnepServer.this) {
-                            serverSocket = mServerSocket;
-                        }
-
-                        if (serverSocket == null) {
-                            if (DBG) Log.d(TAG, "Server socket shut down.");
-                            return;
-                        }
-                        if (DBG) Log.d(TAG, "about to accept");
-                        LlcpSocket communicationSocket = serverSocket.accept();
-                        if (DBG) Log.d(TAG, "accept returned " + communicationSocket);
-                        if (communicationSocket != null) {
-                            int miu = communicationSocket.getRemoteMiu();
-                            int fragmentLength = (mFragmentLength == -1) ?
-                                    miu : Math.min(miu, mFragmentLength);
-                            new ConnectionThread(communicationSocket, fragmentLength).start();
-                        }
-
-                        synchronized (SnepServer.this) {
-                            threadRunning = mThreadRunning;
-                        }
-                    }
-                    if (DBG) Log.d(TAG, "stop running");
-                } catch (LlcpException e) {
-                    Log.e(TAG, "llcp error", e);
+                    communicationSocket.close();
                 } catch (IOException e) {
-                    Log.e(TAG, "IO error", e);
-                } finally {
-                    synchronized (SnepServer.this) {
-                        if (mServerSocket != null) {
-                            if (DBG) Log.d(TAG, "about to close");
-                            try {
-                                mServerSocket.close();
-                            } catch (IOException e) {
-                                // ignore
-                            }
-                            mServerSocket = null;
-                        }
-                    }
-                }
-
-                synchronized (SnepServer.this) {
-                    threadRunning = mThreadRunning;
+                    // ignore
                 }
             }
         }
 
-        public void shutdown() {
+        @Override
+        public void onStopped() {
             synchronized (SnepServer.this) {
-                mThreadRunning = false;
-                if (mServerSocket != null) {
-                    try {
-                        mServerSocket.close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                    mServerSocket = null;
-                }
+                mServerRunning = false;
             }
         }
     }
 
+    /**
+     * Registers this server's service with {@code host}, which then owns
+     * its lifecycle. Use either this or {@link #start()}, not both.
+     */
+    public void registerWith(LlcpServiceHost host) {
+        LlcpSocketTuner.Params params = LlcpSocketTuner.getInstance().getServerParams(MIU);
+        host.register(mServiceName, mServiceSap, params.miu, params.rw,
+                params.linearBufferLength, mServiceHandler);
+        if (mDeflateSap != -1) {
+            host.register(DEFLATE_SERVICE_NAME, mDeflateSap, params.miu, params.rw,
+                    params.linearBufferLength, mDeflateServiceHandler);
+        }
+    }
+
+    /**
+     * Sets the memory budget for buffering inbound requests. Requests whose
+     * declared length does not fit are rejected before any payload is
+     * buffered. Applies to connections accepted after this call; pass null
+     * to disable the limit.
+     */
+    public void setReceiveBudget(SnepReceiveBudget budget) {
+        synchronized (SnepServer.this) {
+            mReceiveBudget = budget;
+        }
+    }
+
+    public SnepReceiveBudget getReceiveBudget() {
+        synchronized (SnepServer.this) {
+            return mReceiveBudget;
+        }
+    }
+
+    /** Starts the server on its own {@link LlcpServiceHost}. */
     public void start() {
         synchronized (SnepServer.this) {
-            if (DBG) Log.d(TAG, "start, thread = " + mServerThread);
-            if (mServerThread == null) {
-                if (DBG) Log.d(TAG, "starting new server thread");
-                mServerThread = new ServerThread();
-                mServerThread.start();
-                mServerRunning = true;
+            if (DBG) Log.d(TAG, "start, host = " + mServiceHost);
+            if (mServiceHost == null) {
+                if (DBG) Log.d(TAG, "starting new server host");
+                mServiceHost = new LlcpServiceHost(TAG);
+                registerWith(mServiceHost);
+                mServiceHost.start();
             }
         }
     }
 
     public void stop() {
+        LlcpServiceHost host;
         synchronized (SnepServer.this) {
-            if (DBG) Log.d(TAG, "stop, thread = " + mServerThread);
-            if (mServerThread != null) {
-                if (DBG) Log.d(TAG, "shuting down server thread");
-                mServerThread.shutdown();
-                mServerThread = null;
-                mServerRunning = false;
-            }
+            if (DBG) Log.d(TAG, "stop, host = " + mServiceHost);
+            host = mServiceHost;
+            mServiceHost = null;
+        }
+        if (host != null) {
+            if (DBG) Log.d(TAG, "shuting down server host");
+            host.stop(STOP_TIMEOUT_MS);
         }
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the send order of the outbound beam queue.
+ */
+public class BeamQueueTests extends AndroidTestCase {
+    public void testPriorityOrder() {
+        BeamQueue queue = new BeamQueue();
+        NdefMessage low = getNdef("low");
+        NdefMessage high = getNdef("high");
+        assertTrue(queue.add(null, low, null, P2pLinkManager.PRIORITY_NORMAL));
+        assertTrue(queue.add(null, high, null, P2pLinkManager.PRIORITY_HIGH));
+
+        BeamQueue.Item[] items = queue.toArray();
+        assertEquals(2, items.length);
+        assertSame(high, items[0].message);
+        assertSame(low, items[1].message);
+        assertSame(high, queue.begin().message);
+    }
+
+    public void testFifoWithinPriority() {
+        BeamQueue queue = new BeamQueue();
+        NdefMessage first = getNdef("first");
+        NdefMessage second = getNdef("second");
+        NdefMessage third = getNdef("third");
+        queue.add(null, first, null, P2pLinkManager.PRIORITY_NORMAL);
+        queue.add(null, second, null, P2pLinkManager.PRIORITY_NORMAL);
+        queue.add(null, third, null, P2pLinkManager.PRIORITY_NORMAL);
+
+        BeamQueue.Item item = queue.begin();
+        assertSame(first, item.message);
+        queue.onSent(item);
+        item = queue.begin();
+        assertSame(second, item.message);
+        queue.onSent(item);
+        assertSame(third, queue.begin().message);
+    }
+
+    public void testLatestWinsPerOwner() {
+        BeamQueue queue = new BeamQueue();
+        NdefMessage other = getNdef("other");
+        NdefMessage stale = getNdef("stale");
+        NdefMessage latest = getNdef("latest");
+        queue.add("owner", stale, null, P2pLinkManager.PRIORITY_NORMAL);
+        queue.add(null, other, null, P2pLinkManager.PRIORITY_NORMAL);
+        queue.add("owner", latest, null, P2pLinkManager.PRIORITY_NORMAL);
+
+        BeamQueue.Item[] items = queue.toArray();
+        assertEquals(2, items.length);
+        assertSame(other, items[0].message);
+        assertSame(latest, items[1].message);
+        assertEquals(1, queue.mCoalesced);
+    }
+
+    public void testInFlightNotCoalesced() {
+        BeamQueue queue = new BeamQueue();
+        NdefMessage sending = getNdef("sending");
+        NdefMessage latest = getNdef("latest");
+        queue.add("owner", sending, null, P2pLinkManager.PRIORITY_NORMAL);
+
+        BeamQueue.Item item = queue.begin();
+        assertSame(sending, item.message);
+        queue.add("owner", latest, null, P2pLinkManager.PRIORITY_NORMAL);
+        assertEquals(0, queue.mCoalesced);
+
+        queue.onSent(item);
+        assertEquals(1, queue.mSent);
+        assertSame(latest, queue.begin().message);
+    }
+
+    public void testFailedStaysQueued() {
+        BeamQueue queue = new BeamQueue();
+        NdefMessage first = getNdef("first");
+        NdefMessage latest = getNdef("latest");
+        queue.add("owner", first, null, P2pLinkManager.PRIORITY_NORMAL);
+
+        BeamQueue.Item item = queue.begin();
+        queue.onFailed(item);
+        // No longer pinned, so the owner's next message replaces it
+        queue.add("owner", latest, null, P2pLinkManager.PRIORITY_NORMAL);
+        assertEquals(1, queue.mCoalesced);
+        assertEquals(1, queue.toArray().length);
+        assertSame(latest, queue.begin().message);
+    }
+
+    public void testFull() {
+        BeamQueue queue = new BeamQueue();
+        for (int i = 0; i < BeamQueue.MAX_ITEMS; i++) {
+            assertTrue(queue.add(null, getNdef("item" + i), null,
+                    P2pLinkManager.PRIORITY_NORMAL));
+        }
+        assertFalse(queue.add(null, getNdef("overflow"), null, P2pLinkManager.PRIORITY_HIGH));
+        assertEquals(BeamQueue.MAX_ITEMS, queue.toArray().length);
+    }
+
+    NdefMessage getNdef(String text) {
+        NdefRecord rec = new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "text/plain".getBytes(),
+                new byte[0], text.getBytes());
+        return new NdefMessage(new NdefRecord[] { rec });
+    }
+}
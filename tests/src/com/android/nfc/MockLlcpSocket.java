@@ -51,6 +51,15 @@ public class MockLlcpSocket implements DeviceHost.LlcpSocket {
         }
     }
 
+    @Override
+    public void send(byte[] data, int offset, int length) throws IOException {
+        // The paired socket keeps a reference to each packet, so the range
+        // has to be copied out of the caller's (reusable) buffer here.
+        byte[] packet = new byte[length];
+        System.arraycopy(data, offset, packet, 0, length);
+        send(packet);
+    }
+
     @Override
     public int receive(byte[] receiveBuffer) throws IOException {
         synchronized (mReceivedPackets) {
@@ -68,6 +77,10 @@ public class MockLlcpSocket implements DeviceHost.LlcpSocket {
         }
     }
 
+    public boolean isClosed() {
+        return mClosed;
+    }
+
     public static void bind(MockLlcpSocket client, MockLlcpSocket server) {
         client.mPairedSocket = server;
         server.mPairedSocket = client;
@@ -85,6 +98,11 @@ public class MockLlcpSocket implements DeviceHost.LlcpSocket {
 
     @Override
     public int getRemoteRw() {
+        return 1;
+    }
+
+    @Override
+    public int getRemoteSap() {
         throw new UnsupportedOperationException();
     }
 
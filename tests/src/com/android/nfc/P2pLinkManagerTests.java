@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.snep.SnepMessage;
+
+import android.content.Context;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Tests how received messages interact with an outgoing beam.
+ */
+public class P2pLinkManagerTests extends AndroidTestCase {
+    public void testBackgroundMessageKeepsSendRunning() throws Exception {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        RecordingListener listener = new RecordingListener();
+        TestLinkManager manager = new TestLinkManager(getContext(), listener);
+
+        P2pLinkManager.SendTask sendTask = manager.new SendTask();
+        FutureTask<SnepMessage> put = new FutureTask<SnepMessage>(new Callable<SnepMessage>() {
+            @Override
+            public SnepMessage call() {
+                return null;
+            }
+        });
+        synchronized (manager) {
+            manager.mLinkState = P2pLinkManager.LINK_STATE_UP;
+            manager.mSendState = P2pLinkManager.SEND_STATE_SENDING;
+            manager.mSendTask = sendTask;
+            manager.mSnepPut = put;
+        }
+
+        NdefMessage background = getNdef("background");
+        manager.mNppCallback.onBackgroundMessageReceived(background);
+        assertTrue(manager.mHandler.hasMessages(P2pLinkManager.MSG_BACKGROUND_RECEIVE));
+        assertFalse(manager.mHandler.hasMessages(P2pLinkManager.MSG_RECEIVE_COMPLETE));
+        manager.mHandler.removeMessages(P2pLinkManager.MSG_BACKGROUND_RECEIVE);
+        manager.handleBackgroundReceive(background);
+
+        assertEquals(1, manager.mDispatched.size());
+        assertSame(background, manager.mDispatched.get(0));
+        assertEquals(0, listener.mReceives);
+        synchronized (manager) {
+            assertEquals(P2pLinkManager.SEND_STATE_SENDING, manager.mSendState);
+            assertSame(sendTask, manager.mSendTask);
+            assertSame(put, manager.mSnepPut);
+        }
+        assertFalse(sendTask.isCancelled());
+        assertFalse(put.isCancelled());
+    }
+
+    NdefMessage getNdef(String text) {
+        NdefRecord rec = new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "text/plain".getBytes(),
+                new byte[0], text.getBytes());
+        return new NdefMessage(new NdefRecord[] { rec });
+    }
+
+    static class TestLinkManager extends P2pLinkManager {
+        final ArrayList<NdefMessage> mDispatched = new ArrayList<NdefMessage>();
+
+        TestLinkManager(Context context, P2pEventListener listener) {
+            super(context, listener);
+        }
+
+        @Override
+        void dispatchMockTag(NdefMessage m) {
+            mDispatched.add(m);
+        }
+    }
+
+    static class RecordingListener implements P2pEventListener {
+        int mReceives;
+
+        @Override
+        public void onP2pInRange() { }
+
+        @Override
+        public void onP2pSendConfirmationRequested() { }
+
+        @Override
+        public void onP2pSendComplete() { }
+
+        @Override
+        public void onP2pReceiveComplete() {
+            mReceives++;
+        }
+
+        @Override
+        public void onP2pDuplexReceiveComplete() {
+            mReceives++;
+        }
+
+        @Override
+        public void onP2pOutOfRange() { }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.ndefpush;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests NPP message set encoding and decoding.
+ */
+public class NdefPushTests extends AndroidTestCase {
+    private static final int MIU = 128;
+
+    public void testBatchRoundTrip() throws Exception {
+        NdefMessage immediate = getNdef(300);
+        NdefMessage first = getNdef(10);
+        NdefMessage second = getNdef(500);
+        byte[] actions = new byte[] {
+                NdefPushProtocol.ACTION_BACKGROUND,
+                NdefPushProtocol.ACTION_IMMEDIATE,
+                NdefPushProtocol.ACTION_BACKGROUND };
+        NdefMessage[] messages = new NdefMessage[] { first, immediate, second };
+        byte[] bytes = new NdefPushProtocol(actions, messages).toByteArray();
+
+        NdefPushProtocol decoded = new NdefPushProtocol(bytes);
+        assertEquals(3, decoded.getMessageCount());
+        assertNdefEquals(immediate, decoded.getImmediate());
+        NdefMessage[] background = decoded.getBackground();
+        assertEquals(2, background.length);
+        assertNdefEquals(first, background[0]);
+        assertNdefEquals(second, background[1]);
+
+        // Same result when fed in link-sized fragments
+        NdefPushDecoder decoder = new NdefPushDecoder(bytes.length);
+        for (int offset = 0; offset < bytes.length; offset += MIU) {
+            assertFalse(decoder.isComplete());
+            decoder.feed(bytes, offset, Math.min(MIU, bytes.length - offset));
+        }
+        assertTrue(decoder.isComplete());
+        assertTrue(Arrays.equals(bytes, decoder.getProtocol().toByteArray()));
+    }
+
+    public void testDecodeOneByteFragments() throws Exception {
+        NdefMessage ndef = getNdef(40);
+        byte[] bytes = new NdefPushProtocol(ndef, NdefPushProtocol.ACTION_IMMEDIATE)
+                .toByteArray();
+
+        NdefPushDecoder decoder = new NdefPushDecoder(bytes.length);
+        for (int offset = 0; offset < bytes.length; offset++) {
+            assertFalse(decoder.isComplete());
+            decoder.feed(bytes, offset, 1);
+        }
+        assertTrue(decoder.isComplete());
+        assertNdefEquals(ndef, decoder.getProtocol().getImmediate());
+    }
+
+    public void testDecodeTruncated() throws Exception {
+        byte[] bytes = new NdefPushProtocol(getNdef(100), NdefPushProtocol.ACTION_IMMEDIATE)
+                .toByteArray();
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 1);
+
+        NdefPushDecoder decoder = new NdefPushDecoder(MIU * 4);
+        decoder.feed(truncated, 0, truncated.length);
+        assertFalse(decoder.isComplete());
+
+        try {
+            new NdefPushProtocol(truncated);
+            fail("Expected FormatException");
+        } catch (FormatException e) {
+            // Expected
+        }
+    }
+
+    public void testDecodeIgnoresTrailingBytes() throws Exception {
+        NdefMessage ndef = getNdef(100);
+        byte[] bytes = new NdefPushProtocol(ndef, NdefPushProtocol.ACTION_IMMEDIATE)
+                .toByteArray();
+        byte[] padded = Arrays.copyOf(bytes, bytes.length + 10);
+
+        NdefPushProtocol decoded = new NdefPushProtocol(padded);
+        assertEquals(1, decoded.getMessageCount());
+        assertNdefEquals(ndef, decoded.getImmediate());
+    }
+
+    public void testDecodeRejectsZeroLengthBody() throws Exception {
+        ByteBuffer set = ByteBuffer.allocate(1 + 4 + 1 + 4);
+        set.put(NdefPushProtocol.VERSION);
+        set.putInt(1);
+        set.put(NdefPushProtocol.ACTION_IMMEDIATE);
+        set.putInt(0);
+
+        try {
+            new NdefPushProtocol(set.array());
+            fail("Expected FormatException");
+        } catch (FormatException e) {
+            // Expected
+        }
+    }
+
+    public void testDecodeRejectsLengthBeyondData() throws Exception {
+        // Declares a body far larger than the bytes that follow it
+        ByteBuffer set = ByteBuffer.allocate(1 + 4 + 1 + 4 + 8);
+        set.put(NdefPushProtocol.VERSION);
+        set.putInt(1);
+        set.put(NdefPushProtocol.ACTION_IMMEDIATE);
+        set.putInt(Integer.MAX_VALUE);
+
+        try {
+            new NdefPushProtocol(set.array());
+            fail("Expected FormatException");
+        } catch (FormatException e) {
+            // Expected
+        }
+
+        // A streamed set is held to its limit before anything is allocated
+        NdefPushDecoder decoder = new NdefPushDecoder(MIU);
+        try {
+            decoder.feed(set.array(), 0, 1 + 4 + 1 + 4);
+            fail("Expected FormatException");
+        } catch (FormatException e) {
+            // Expected
+        }
+    }
+
+    void assertNdefEquals(NdefMessage expected, NdefMessage actual) {
+        assertNotNull(actual);
+        assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+    }
+
+    NdefMessage getNdef(int size) {
+        StringBuffer string = new StringBuffer(size);
+        for (int i = 0; i < size; i++) {
+            string.append('A' + (i % 26));
+        }
+        NdefRecord rec = new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "text/plain".getBytes(),
+                new byte[0], string.toString().getBytes());
+        return new NdefMessage(new NdefRecord[] { rec });
+    }
+}
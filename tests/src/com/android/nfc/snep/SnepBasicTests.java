@@ -17,13 +17,24 @@
 package com.android.nfc.snep;
 
 import com.android.nfc.MockLlcpSocket;
+import com.android.nfc.PayloadSpool;
 
 import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests the SNEP cleint/server interfaces using a mock LLCP socket.
@@ -258,6 +269,527 @@ public class SnepBasicTests extends AndroidTestCase {
         assertEquals(SnepMessage.RESPONSE_SUCCESS, response.getField());
     }
 
+    public void testPutExceedsReceiveBudget() throws Exception {
+        MockLlcpSocket clientSocket = new MockLlcpSocket();
+        MockLlcpSocket serverSocket = new MockLlcpSocket();
+        MockLlcpSocket.bind(clientSocket, serverSocket);
+
+        final SnepReceiveBudget budget = new SnepReceiveBudget(500, 1000);
+        final SnepMessenger client = new SnepMessenger(true, clientSocket, MIU);
+        final SnepMessenger server = new SnepMessenger(false, serverSocket, MIU, budget);
+
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SnepServer.handleRequest(server, mCallback);
+                } catch (Exception e) {
+                    Log.e(TAG, "error getting message", e);
+                }
+            };
+        };
+        serverThread.start();
+
+        try {
+            client.sendMessage(SnepMessage.getPutRequest(getNdef(900)));
+            fail("Expected the server to reject the request");
+        } catch (IOException e) {
+            // Expected
+        }
+        serverThread.join();
+
+        assertEquals(1, budget.getRejectedConnectionLimit());
+        assertEquals(0, budget.getReserved());
+    }
+
+    public void testDecodeOneByteFragments() throws Exception {
+        NdefMessage ndef = getNdef(300);
+        byte[] bytes = SnepMessage.getGetRequest(ACCEPTABLE_LENGTH, ndef).toByteArray();
+
+        SnepMessageDecoder decoder = new SnepMessageDecoder();
+        for (int i = 0; i < bytes.length; i++) {
+            assertFalse(decoder.isComplete());
+            decoder.feed(bytes, i, 1);
+        }
+        assertTrue(decoder.isComplete());
+
+        SnepMessage msg = decoder.getMessage();
+        assertEquals(SnepMessage.REQUEST_GET, msg.getField());
+        assertEquals(ACCEPTABLE_LENGTH, msg.getAcceptableLength());
+        assertTrue(Arrays.equals(ndef.toByteArray(), msg.getNdefMessage().toByteArray()));
+    }
+
+    public void testDecodeOverrun() throws Exception {
+        byte[] bytes = SnepMessage.getPutRequest(getSmallNdef()).toByteArray();
+
+        SnepMessageDecoder decoder = new SnepMessageDecoder();
+        decoder.feed(bytes, 0, bytes.length);
+        try {
+            decoder.feed(bytes, 0, 1);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testDecodeRejectsOversizedLength() throws Exception {
+        byte[] header = new byte[] { SnepMessage.VERSION, SnepMessage.RESPONSE_SUCCESS,
+                (byte) 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+
+        SnepMessageDecoder decoder = new SnepMessageDecoder();
+        decoder.setMaxLength(ACCEPTABLE_LENGTH);
+        try {
+            decoder.feed(header, 0, header.length);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testChunkReceiverResume() throws Exception {
+        final byte[][] received = new byte[1][];
+        SnepChunkReceiver receiver = new SnepChunkReceiver(new SnepChunkReceiver.Callback() {
+            @Override
+            public boolean onTransferComplete(String mimeType, PayloadSpool payload) {
+                try {
+                    received[0] = payload.toByteArray();
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+                return true;
+            }
+        });
+        byte[] data = getNdef(300).toByteArray();
+        byte[] mime = "text/plain".getBytes();
+
+        PayloadSpool.configure(getContext().getCacheDir());
+        try {
+            assertNull(receiver.doPut(getSmallNdef()));
+            assertEquals(SnepMessage.RESPONSE_SUCCESS, receiver.doPut(
+                    SnepChunk.createChunk(1, data.length, 0, mime, data, 100)).getField());
+
+            // Chunk past the confirmed offset is refused
+            byte[] tail = Arrays.copyOfRange(data, 200, data.length);
+            assertEquals(SnepMessage.RESPONSE_BAD_REQUEST, receiver.doPut(
+                    SnepChunk.createChunk(1, data.length, 200, mime, tail, tail.length))
+                    .getField());
+
+            // Status tells the sender where to resume
+            SnepMessage status = receiver.doGet(SnepChunk.createStatus(1, 0));
+            assertEquals(100, SnepChunk.parseStatus(status.getNdefMessage())[1]);
+
+            byte[] rest = Arrays.copyOfRange(data, 100, data.length);
+            assertEquals(SnepMessage.RESPONSE_SUCCESS, receiver.doPut(
+                    SnepChunk.createChunk(1, data.length, 100, mime, rest, rest.length))
+                    .getField());
+            assertTrue(Arrays.equals(data, received[0]));
+        } finally {
+            receiver.clear();
+            PayloadSpool.configure(null);
+        }
+    }
+
+    public void testChunkReceiverRefusedTransfer() throws Exception {
+        SnepChunkReceiver receiver = new SnepChunkReceiver(new SnepChunkReceiver.Callback() {
+            @Override
+            public boolean onTransferComplete(String mimeType, PayloadSpool payload) {
+                return false;
+            }
+        });
+        byte[] data = getNdef(300).toByteArray();
+        byte[] mime = "text/plain".getBytes();
+
+        PayloadSpool.configure(getContext().getCacheDir());
+        try {
+            // Larger than one SNEP message may be
+            assertEquals(SnepMessage.RESPONSE_BAD_REQUEST, receiver.doPut(
+                    SnepChunk.createChunk(1, SnepChunkReceiver.DEFAULT_MAX_LENGTH + 1, 0, mime,
+                    data, 100)).getField());
+
+            assertEquals(SnepMessage.RESPONSE_REJECT, receiver.doPut(
+                    SnepChunk.createChunk(2, data.length, 0, mime, data, data.length))
+                    .getField());
+            // Not reported as delivered to a resuming sender
+            SnepMessage status = receiver.doGet(SnepChunk.createStatus(2, 0));
+            assertEquals(0, SnepChunk.parseStatus(status.getNdefMessage())[1]);
+        } finally {
+            receiver.clear();
+            PayloadSpool.configure(null);
+        }
+    }
+
+    public void testChunkSenderResumesAheadOfConfirmed() throws Exception {
+        final byte[][] received = new byte[1][];
+        final SnepChunkReceiver receiver = new SnepChunkReceiver(
+                new SnepChunkReceiver.Callback() {
+            @Override
+            public boolean onTransferComplete(String mimeType, PayloadSpool payload) {
+                try {
+                    received[0] = payload.toByteArray();
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+                return true;
+            }
+        });
+        byte[] data = getNdef(300).toByteArray();
+        byte[] mime = "text/plain".getBytes();
+        SnepChunkSender sender = new SnepChunkSender(ByteBuffer.wrap(data), "text/plain", 100);
+
+        MockLlcpSocket clientSocket = new MockLlcpSocket();
+        MockLlcpSocket serverSocket = new MockLlcpSocket();
+        MockLlcpSocket.bind(clientSocket, serverSocket);
+        final SnepMessenger server = new SnepMessenger(false, serverSocket, MIU);
+        SnepClient client = new SnepClient(new SnepMessenger(true, clientSocket, MIU));
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (SnepServer.handleRequest(server, new SnepServer.Callback() {
+                        @Override
+                        public SnepMessage doPut(NdefMessage msg) {
+                            return receiver.doPut(msg);
+                        }
+
+                        @Override
+                        public SnepMessage doGet(int acceptableLength, NdefMessage msg) {
+                            return receiver.doGet(msg);
+                        }
+                    }));
+                } catch (Exception e) {
+                    // Socket closed
+                }
+            };
+        }.start();
+
+        PayloadSpool.configure(getContext().getCacheDir());
+        try {
+            // The receiver committed the first chunk but its response was lost
+            assertEquals(SnepMessage.RESPONSE_SUCCESS, receiver.doPut(
+                    SnepChunk.createChunk(sender.mTransferId, data.length, 0, mime, data, 100))
+                    .getField());
+            assertEquals(0, sender.getConfirmedOffset());
+
+            assertTrue(sender.send(client, 5000, null));
+            assertTrue(sender.isComplete());
+            assertEquals(2, sender.mChunksSent);
+            assertTrue(Arrays.equals(data, received[0]));
+
+            // A completed transfer reports its full length
+            SnepMessage status = receiver.doGet(SnepChunk.createStatus(sender.mTransferId, 0));
+            assertEquals(data.length, SnepChunk.parseStatus(status.getNdefMessage())[1]);
+        } finally {
+            client.close();
+            receiver.clear();
+            PayloadSpool.configure(null);
+        }
+    }
+
+    public void testChunkSenderPeerStallsMidStream() throws Exception {
+        final SnepChunkReceiver receiver = new SnepChunkReceiver(
+                new SnepChunkReceiver.Callback() {
+            @Override
+            public boolean onTransferComplete(String mimeType, PayloadSpool payload) {
+                return true;
+            }
+        });
+        byte[] data = getNdef(300).toByteArray();
+        SnepChunkSender sender = new SnepChunkSender(ByteBuffer.wrap(data), "text/plain", 100);
+
+        MockLlcpSocket clientSocket = new MockLlcpSocket();
+        MockLlcpSocket serverSocket = new MockLlcpSocket();
+        MockLlcpSocket.bind(clientSocket, serverSocket);
+        final SnepMessenger server = new SnepMessenger(false, serverSocket, MIU);
+        SnepClient client = new SnepClient(new SnepMessenger(true, clientSocket, MIU));
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final AtomicInteger puts = new AtomicInteger();
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (SnepServer.handleRequest(server, new SnepServer.Callback() {
+                        @Override
+                        public SnepMessage doPut(NdefMessage msg) {
+                            if (puts.incrementAndGet() > 1) {
+                                // Stop answering after the first chunk
+                                try {
+                                    stalled.await();
+                                } catch (InterruptedException e) { }
+                            }
+                            return receiver.doPut(msg);
+                        }
+
+                        @Override
+                        public SnepMessage doGet(int acceptableLength, NdefMessage msg) {
+                            return receiver.doGet(msg);
+                        }
+                    }));
+                } catch (Exception e) {
+                    // Socket closed
+                }
+            };
+        }.start();
+
+        final ArrayList<Future<SnepMessage>> started = new ArrayList<Future<SnepMessage>>();
+        SnepChunkSender.OperationTracker tracker = new SnepChunkSender.OperationTracker() {
+            @Override
+            public void onStarted(Future<SnepMessage> operation) {
+                started.add(operation);
+            }
+
+            @Override
+            public void onFinished(Future<SnepMessage> operation) { }
+        };
+
+        PayloadSpool.configure(getContext().getCacheDir());
+        try {
+            sender.send(client, 500, tracker);
+            fail("Expected the deadline to abort the stalled chunk");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            stalled.countDown();
+            client.close();
+            receiver.clear();
+            PayloadSpool.configure(null);
+        }
+        assertEquals(100, sender.getConfirmedOffset());
+        assertFalse(sender.isComplete());
+        assertTrue(clientSocket.isClosed());
+        // Status GET, first chunk, stalled second chunk
+        assertEquals(3, started.size());
+    }
+
+    public void testPutCompressed() throws IOException {
+        MockLlcpSocket clientSocket = new MockLlcpSocket();
+        MockLlcpSocket serverSocket = new MockLlcpSocket();
+        MockLlcpSocket.bind(clientSocket, serverSocket);
+
+        final SnepMessenger client = new SnepMessenger(true, clientSocket, MIU, null, true);
+        final SnepMessenger server = new SnepMessenger(false, serverSocket, MIU, null, true);
+        final NdefMessage[] received = new NdefMessage[1];
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SnepServer.handleRequest(server, new SnepServer.Callback() {
+                        @Override
+                        public SnepMessage doPut(NdefMessage msg) {
+                            received[0] = msg;
+                            return SnepMessage.getMessage(SnepMessage.RESPONSE_SUCCESS);
+                        }
+
+                        @Override
+                        public SnepMessage doGet(int acceptableLength, NdefMessage msg) {
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    Log.e(TAG, "error getting message", e);
+                }
+            };
+        }.start();
+
+        NdefMessage ndef = getNdef(3000);
+        SnepMessage response = null;
+        try {
+            client.sendMessage(SnepMessage.getPutRequest(ndef));
+            response = client.getMessage();
+        } catch (SnepException e) {
+            throw new IOException("Failed to retrieve SNEP message", e);
+        }
+
+        assertEquals(SnepMessage.RESPONSE_SUCCESS, response.getField());
+        assertTrue(Arrays.equals(ndef.toByteArray(), received[0].toByteArray()));
+    }
+
+    public void testCompressionSkipsIncompressible() throws IOException {
+        NdefRecord rec = new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "image/jpeg".getBytes(),
+                new byte[0], new byte[500]);
+        NdefMessage ndef = new NdefMessage(new NdefRecord[] { rec });
+        byte[] body = SnepCompression.encode(ndef, ndef.toByteArray());
+        assertEquals(SnepCompression.METHOD_STORED, body[0]);
+        assertTrue(Arrays.equals(ndef.toByteArray(), SnepCompression.decode(body, 1024)));
+
+        NdefMessage text = getNdef(500);
+        body = SnepCompression.encode(text, text.toByteArray());
+        assertEquals(SnepCompression.METHOD_DEFLATE, body[0]);
+        assertTrue(body.length < text.toByteArray().length);
+        assertTrue(Arrays.equals(text.toByteArray(), SnepCompression.decode(body, 1024)));
+    }
+
+    public void testContentStoreGet() throws Exception {
+        SnepContentStore store = new SnepContentStore();
+        NdefMessage request = new NdefMessage(new NdefRecord[] {
+                new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "text/plain".getBytes(),
+                        new byte[0], new byte[0]) });
+        assertEquals(SnepMessage.RESPONSE_NOT_FOUND,
+                store.doGet(ACCEPTABLE_LENGTH, request).getField());
+
+        NdefMessage content = getNdef(100);
+        store.publishMime("text/plain", content);
+        SnepMessage first = store.doGet(ACCEPTABLE_LENGTH, request);
+        assertEquals(SnepMessage.RESPONSE_SUCCESS, first.getField());
+        assertTrue(Arrays.equals(content.toByteArray(), first.getNdefMessage().toByteArray()));
+
+        // Served from the response cache the second time
+        assertSame(first, store.doGet(ACCEPTABLE_LENGTH, request));
+
+        assertEquals(SnepMessage.RESPONSE_EXCESS_DATA, store.doGet(10, request).getField());
+
+        store.publishMime("text/plain", getNdef(200));
+        assertNotSame(first, store.doGet(ACCEPTABLE_LENGTH, request));
+    }
+
+    public void testContentStoreCachesCompressedForm() throws Exception {
+        SnepContentStore store = new SnepContentStore();
+        NdefMessage request = new NdefMessage(new NdefRecord[] {
+                new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "text/plain".getBytes(),
+                        new byte[0], new byte[0]) });
+        NdefMessage content = getNdef(500);
+        store.publishMime("text/plain", content);
+
+        int compressedBefore = SnepCompression.sCompressed;
+        SnepMessage response = store.doGet(ACCEPTABLE_LENGTH, request);
+        SnepMessage compressed = response.getCompressedForm();
+        assertSame(compressed, store.doGet(ACCEPTABLE_LENGTH, request).getCompressedForm());
+        assertEquals(compressedBefore + 1, SnepCompression.sCompressed);
+        assertTrue(Arrays.equals(content.toByteArray(),
+                SnepCompression.decode(compressed.getNdefBytes(), ACCEPTABLE_LENGTH)));
+
+        // Both forms count against the cache size
+        assertEquals(response.toByteArray().length + compressed.toByteArray().length,
+                store.mCacheSize);
+    }
+
+    public void testContentStoreEvictsByBothForms() throws Exception {
+        NdefMessage first = new NdefMessage(new NdefRecord[] {
+                new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "text/first".getBytes(),
+                        new byte[0], new byte[0]) });
+        NdefMessage second = new NdefMessage(new NdefRecord[] {
+                new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "text/second".getBytes(),
+                        new byte[0], new byte[0]) });
+        NdefMessage content = getNdef(500);
+        int plainSize = SnepMessage.getSuccessResponse(content).toByteArray().length;
+
+        // Room for two plain responses, but not for two with their compressed forms
+        SnepContentStore store = new SnepContentStore(2 * plainSize + 1);
+        store.publishMime("text/first", content);
+        store.publishMime("text/second", content);
+        store.doGet(ACCEPTABLE_LENGTH, first);
+        store.doGet(ACCEPTABLE_LENGTH, second);
+
+        assertEquals(1, store.mResponses.size());
+        assertTrue(store.mCacheSize <= store.mMaxCacheSize);
+    }
+
+    public void testGetStreamed() throws IOException {
+        MockLlcpSocket clientSocket = new MockLlcpSocket();
+        MockLlcpSocket serverSocket = new MockLlcpSocket();
+        MockLlcpSocket.bind(clientSocket, serverSocket);
+
+        final SnepMessenger client = new SnepMessenger(true, clientSocket, MIU);
+        final SnepMessenger server = new SnepMessenger(false, serverSocket, MIU);
+        final NdefMessage content = getNdef(900);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SnepServer.handleRequest(server, new SnepServer.Callback() {
+                        @Override
+                        public SnepMessage doPut(NdefMessage msg) {
+                            return SnepMessage.getMessage(SnepMessage.RESPONSE_NOT_IMPLEMENTED);
+                        }
+
+                        @Override
+                        public SnepMessage doGet(int acceptableLength, NdefMessage msg) {
+                            return SnepMessage.getSuccessResponse(content);
+                        }
+                    });
+                } catch (Exception e) {
+                    Log.e(TAG, "error getting message", e);
+                }
+            };
+        }.start();
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final int[] progress = new int[2];
+        SnepResponseSink sink = new SnepResponseSink() {
+            @Override
+            public void onResponseStarted(byte field, int length) {
+                assertEquals(SnepMessage.RESPONSE_SUCCESS, field);
+            }
+
+            @Override
+            public void onData(ByteBuffer data) {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                received.write(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public void onProgress(int done, int total) {
+                progress[0] = done;
+                progress[1] = total;
+            }
+        };
+
+        SnepMessage response = null;
+        try {
+            client.sendMessage(SnepMessage.getGetRequest(ACCEPTABLE_LENGTH, getSmallNdef()));
+            response = client.getMessage(sink);
+        } catch (SnepException e) {
+            throw new IOException("Failed to retrieve SNEP message", e);
+        }
+
+        assertEquals(SnepMessage.RESPONSE_SUCCESS, response.getField());
+        assertNull(response.getNdefMessage());
+        assertTrue(Arrays.equals(content.toByteArray(), received.toByteArray()));
+        assertEquals(content.toByteArray().length, progress[0]);
+        assertEquals(progress[0], progress[1]);
+    }
+
+    public void testPutAsyncDeadlineExpires() throws Exception {
+        MockLlcpSocket clientSocket = new MockLlcpSocket();
+        MockLlcpSocket serverSocket = new MockLlcpSocket();
+        MockLlcpSocket.bind(clientSocket, serverSocket);
+
+        // No server: the PUT blocks waiting for a response
+        SnepClient client = new SnepClient(new SnepMessenger(true, clientSocket, MIU));
+        Future<SnepMessage> put = client.putAsync(SnepMessage.getPutRequest(getSmallNdef()),
+                100, mThreadExecutor, null);
+        try {
+            put.get();
+            fail("Expected the deadline to abort the PUT");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(clientSocket.isClosed());
+        assertFalse(client.isConnected());
+    }
+
+    public void testPutAsyncCancelClosesSocket() throws Exception {
+        MockLlcpSocket clientSocket = new MockLlcpSocket();
+        MockLlcpSocket serverSocket = new MockLlcpSocket();
+        MockLlcpSocket.bind(clientSocket, serverSocket);
+
+        SnepClient client = new SnepClient(new SnepMessenger(true, clientSocket, MIU));
+        Future<SnepMessage> put = client.putAsync(SnepMessage.getPutRequest(getSmallNdef()),
+                0, mThreadExecutor, null);
+        assertTrue(put.cancel(true));
+        assertTrue(clientSocket.isClosed());
+        try {
+            put.get();
+            fail("Expected CancellationException");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
     NdefMessage getSmallNdef() {
         NdefRecord rec = new NdefRecord(NdefRecord.TNF_ABSOLUTE_URI, NdefRecord.RTD_URI,
                 new byte[0], "http://android.com".getBytes());
@@ -274,6 +806,13 @@ public class SnepBasicTests extends AndroidTestCase {
         return new NdefMessage(new NdefRecord[] { rec });
     }
 
+    final Executor mThreadExecutor = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            new Thread(r).start();
+        }
+    };
+
     /**
      * A SNEP Server implementation that accepts PUT requests for all ndef
      * messages and responds to GET requests with acceptable length greater